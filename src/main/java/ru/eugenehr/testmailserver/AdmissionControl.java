@@ -0,0 +1,185 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * Admission control of the client sessions shared by all servers.
+ *
+ * <p>Limits the total number of sessions, the number of sessions per remote IP address and the
+ * connection rate. The limits are checked when a connection is registered, before the protocol
+ * handler creates any session state, so an over-limit client costs a counter update and a constant
+ * response. A limit of 0 means no limit.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class AdmissionControl {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile int maxSessions;
+    private volatile int maxSessionsPerAddress;
+    private volatile int maxConnectionRate;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, AtomicInteger> sessionsPerAddress = new ConcurrentHashMap<>();
+    /**
+     * Current one second window of the connection rate limit and the number of connections in it.
+     */
+    private final AtomicLong rateWindow = new AtomicLong();
+    private final AtomicInteger rateCount = new AtomicInteger();
+
+    /**
+     * Admits a new session.
+     *
+     * @param remoteAddress client address
+     * @return {@code null} if the session is admitted and must be {@link #release(SocketAddress) released}
+     *     when closed or the exceeded limit
+     */
+    public Limit admit(SocketAddress remoteAddress) {
+        final int maxRate = maxConnectionRate;
+        if (maxRate > 0) {
+            final long window = System.nanoTime() / SECOND;
+            final long current = rateWindow.get();
+            if (current != window && rateWindow.compareAndSet(current, window)) {
+                rateCount.set(0);
+            }
+            if (rateCount.incrementAndGet() > maxRate) {
+                return Limit.CONNECTION_RATE;
+            }
+        }
+
+        final int max = maxSessions;
+        if (sessions.incrementAndGet() > max && max > 0) {
+            sessions.decrementAndGet();
+            return Limit.SESSIONS;
+        }
+
+        final InetAddress address = address(remoteAddress);
+        if (address != null) {
+            // Count atomically with the removal of the counter by releaseAddress
+            final AtomicInteger count = sessionsPerAddress.compute(address, (key, value) -> {
+                final AtomicInteger counter = value == null ? new AtomicInteger() : value;
+                counter.incrementAndGet();
+                return counter;
+            });
+            final int maxPerAddress = maxSessionsPerAddress;
+            if (count.get() > maxPerAddress && maxPerAddress > 0) {
+                releaseAddress(address);
+                sessions.decrementAndGet();
+                return Limit.SESSIONS_PER_ADDRESS;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases an admitted session.
+     *
+     * @param remoteAddress client address
+     */
+    public void release(SocketAddress remoteAddress) {
+        final InetAddress address = address(remoteAddress);
+        if (address != null) {
+            releaseAddress(address);
+        }
+        sessions.decrementAndGet();
+    }
+
+    /**
+     * Sends the rejection response and closes the connection. Reading from the connection is
+     * stopped immediately.
+     *
+     * @param channel  client channel
+     * @param response rejection response
+     */
+    static void reject(Channel channel, ByteBuf response) {
+        channel.config().setAutoRead(false);
+        if (Tls.isActive(channel.pipeline())) {
+            // The response could be sent after the handshake only
+            response.release();
+            channel.close();
+        } else {
+            channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Gets the number of admitted sessions.
+     *
+     * @return the number of open sessions
+     */
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public int getMaxSessionsPerAddress() {
+        return maxSessionsPerAddress;
+    }
+
+    public void setMaxSessionsPerAddress(int maxSessionsPerAddress) {
+        this.maxSessionsPerAddress = maxSessionsPerAddress;
+    }
+
+    public int getMaxConnectionRate() {
+        return maxConnectionRate;
+    }
+
+    /**
+     * Sets the maximum number of new connections per second.
+     *
+     * @param maxConnectionRate maximum number of connections per second or 0 for no limit
+     */
+    public void setMaxConnectionRate(int maxConnectionRate) {
+        this.maxConnectionRate = maxConnectionRate;
+    }
+
+    private void releaseAddress(InetAddress address) {
+        // Remove the counter atomically with the last decrement, so a concurrent admit gets a new one
+        sessionsPerAddress.computeIfPresent(address, (key, count) -> count.decrementAndGet() == 0 ? null : count);
+    }
+
+    private static InetAddress address(SocketAddress remoteAddress) {
+        return remoteAddress instanceof InetSocketAddress ? ((InetSocketAddress) remoteAddress).getAddress() : null;
+    }
+
+    /**
+     * Limits of the admission control.
+     */
+    public enum Limit {
+        SESSIONS, SESSIONS_PER_ADDRESS, CONNECTION_RATE
+    }
+}
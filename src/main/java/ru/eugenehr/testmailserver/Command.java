@@ -0,0 +1,270 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+import io.netty.util.collection.LongObjectHashMap;
+
+/**
+ * Command line of a text protocol parsed in place.
+ *
+ * <p>The verb is looked up in a case-insensitive {@link Verbs} table and the arguments are read
+ * straight from the bytes of the line, with no regular expressions and intermediate strings. Only
+ * the arguments kept by the session are decoded to strings. A session reuses a single instance
+ * for all its commands, the line must not be released while it is parsed.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+final class Command {
+
+    private static final int MAX_NUMBER_DIGITS = 18;
+
+    private ByteBuf line;
+    private int index;
+
+    /**
+     * Starts parsing of a new command line.
+     *
+     * @param line command line without line delimiter
+     * @return this command
+     */
+    Command reset(ByteBuf line) {
+        this.line = line;
+        this.index = line.readerIndex();
+        return this;
+    }
+
+    /**
+     * Reads the command verb.
+     *
+     * @param verbs verb table
+     * @param <V>   type of the verbs
+     * @return the verb or {@code null} if the verb is unknown
+     */
+    <V extends Enum<V>> V verb(Verbs<V> verbs) {
+        final int end = line.writerIndex();
+        long key = 0;
+        int length = 0;
+        while (index < end && line.getByte(index) != ' ') {
+            final byte b = line.getByte(index++);
+            if (b < '!' || ++length > Verbs.MAX_LENGTH) {
+                return null;
+            }
+            key = Verbs.key(key, b);
+        }
+        return verbs.table.get(key);
+    }
+
+    /**
+     * Tests if there are no more arguments.
+     *
+     * @return {@code true} if the rest of the line is blank
+     */
+    boolean isEnd() {
+        skipSpaces();
+        return index >= line.writerIndex();
+    }
+
+    /**
+     * Skips the next argument if it starts with the given prefix, e.g. {@code FROM:} or
+     * {@code SIZE=}. The rest of the argument is read by the next call.
+     *
+     * @param prefix upper case prefix
+     * @return {@code true} if the prefix has been skipped
+     */
+    boolean prefix(byte[] prefix) {
+        skipSpaces();
+        if (!matches(prefix)) {
+            return false;
+        }
+        index += prefix.length;
+        return true;
+    }
+
+    /**
+     * Skips the next argument if it equals to the given keyword.
+     *
+     * @param keyword upper case keyword
+     * @return {@code true} if the keyword has been skipped
+     */
+    boolean keyword(byte[] keyword) {
+        skipSpaces();
+        if (!matches(keyword) || !isArgumentEnd(index + keyword.length)) {
+            return false;
+        }
+        index += keyword.length;
+        return true;
+    }
+
+    /**
+     * Reads the next argument as a non-negative decimal number.
+     *
+     * @return the number or {@code -1} if the argument is missing or is not a number
+     */
+    long number() {
+        skipSpaces();
+        final int end = line.writerIndex();
+        final int start = index;
+        long number = 0;
+        while (index < end) {
+            final byte b = line.getByte(index);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            number = number * 10 + b - '0';
+            index++;
+        }
+        final int digits = index - start;
+        return digits == 0 || digits > MAX_NUMBER_DIGITS || !isArgumentEnd(index) ? -1 : number;
+    }
+
+    /**
+     * Reads the next argument.
+     *
+     * @return the argument or an empty string if there are no more arguments
+     */
+    String argument() {
+        skipSpaces();
+        final int start = index;
+        skipArgument();
+        return string(start, index);
+    }
+
+    /**
+     * Reads the next argument as a path, e.g. {@code <user@domain>} or {@code user@domain}.
+     *
+     * @return the path without angle brackets
+     */
+    String path() {
+        skipSpaces();
+        final int end = line.writerIndex();
+        if (index >= end || line.getByte(index) != '<') {
+            return argument();
+        }
+        final int start = ++index;
+        while (index < end && line.getByte(index) != '>') {
+            index++;
+        }
+        final String path = string(start, index);
+        if (index < end) {
+            index++;
+        }
+        return path;
+    }
+
+    /**
+     * Reads the rest of the line.
+     *
+     * @return the rest of the line without leading and trailing spaces
+     */
+    String rest() {
+        skipSpaces();
+        int end = line.writerIndex();
+        while (end > index && line.getByte(end - 1) == ' ') {
+            end--;
+        }
+        final String rest = string(index, end);
+        index = line.writerIndex();
+        return rest;
+    }
+
+    /**
+     * Skips the next argument.
+     */
+    void skipArgument() {
+        final int end = line.writerIndex();
+        while (index < end && line.getByte(index) != ' ') {
+            index++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return line.toString(CharsetUtil.US_ASCII);
+    }
+
+    private void skipSpaces() {
+        final int end = line.writerIndex();
+        while (index < end && line.getByte(index) == ' ') {
+            index++;
+        }
+    }
+
+    private boolean matches(byte[] bytes) {
+        if (line.writerIndex() - index < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (Verbs.upperCase(line.getByte(index + i)) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isArgumentEnd(int index) {
+        return index >= line.writerIndex() || line.getByte(index) == ' ';
+    }
+
+    private String string(int start, int end) {
+        return line.toString(start, end - start, CharsetUtil.US_ASCII);
+    }
+
+    /**
+     * Case-insensitive table of command verbs. The verbs are the names of enum constants up to
+     * {@value #MAX_LENGTH} characters long.
+     *
+     * @param <V> type of the verbs
+     */
+    static final class Verbs<V extends Enum<V>> {
+
+        private static final int MAX_LENGTH = 8;
+
+        private final LongObjectHashMap<V> table = new LongObjectHashMap<>();
+
+        /**
+         * Creates the verb table.
+         *
+         * @param type enum of the verbs
+         */
+        Verbs(Class<V> type) {
+            for (V verb : type.getEnumConstants()) {
+                final String name = verb.name();
+                if (name.length() > MAX_LENGTH) {
+                    throw new IllegalArgumentException("Verb " + name + " is too long");
+                }
+                long key = 0;
+                for (int i = 0; i < name.length(); i++) {
+                    key = key(key, (byte) name.charAt(i));
+                }
+                table.put(key, verb);
+            }
+        }
+
+        /**
+         * Packs the next verb character into the lookup key.
+         */
+        private static long key(long key, byte b) {
+            return key << 8 | upperCase(b) & 0xFF;
+        }
+
+        private static byte upperCase(byte b) {
+            return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+        }
+    }
+}
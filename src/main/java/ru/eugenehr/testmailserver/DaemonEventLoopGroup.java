@@ -16,8 +16,6 @@
 
 package ru.eugenehr.testmailserver;
 
-import java.util.concurrent.ThreadFactory;
-
 import io.netty.channel.nio.NioEventLoopGroup;
 
 /**
@@ -33,24 +31,16 @@ public class DaemonEventLoopGroup extends NioEventLoopGroup {
      * @param namePrefix threads name prefix
      */
     public DaemonEventLoopGroup(String namePrefix) {
-        super(0, new DaemonThreadFactory(namePrefix));
+        this(namePrefix, 0);
     }
 
-    private static class DaemonThreadFactory implements ThreadFactory {
-
-        private final String namePrefix;
-        private int counter;
-
-        public DaemonThreadFactory(String namePrefix) {
-            this.namePrefix = namePrefix;
-        }
-
-        @Override
-        public Thread newThread(Runnable runnable) {
-            final Thread thread = new Thread(runnable);
-            thread.setDaemon(true);
-            thread.setName(namePrefix + (counter++));
-            return thread;
-        }
+    /**
+     * Constructor.
+     *
+     * @param namePrefix threads name prefix
+     * @param threads    number of threads or 0 for the Netty default
+     */
+    public DaemonEventLoopGroup(String namePrefix, int threads) {
+        super(threads, new DaemonThreadFactory(namePrefix));
     }
 }
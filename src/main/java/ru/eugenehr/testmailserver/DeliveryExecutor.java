@@ -0,0 +1,227 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor for the blocking mailbox I/O that must not run on the event loop threads.
+ *
+ * <p>The executor queue is not bounded but the executor reports itself as saturated when the
+ * queue depth reaches the given capacity. Channels stop reading from the sockets while the
+ * executor is saturated and resume with the callbacks registered with {@link #whenAvailable(Runnable)}.
+ *
+ * <p>On runtimes with virtual threads the executor can run every task on its own virtual thread
+ * instead of a fixed pool, see {@link #create(boolean, int, int)}. Then the tasks never wait in
+ * a queue and the executor is saturated when the number of unfinished tasks reaches the capacity.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class DeliveryExecutor implements Executor {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryExecutor.class);
+
+    private final ExecutorService executor;
+    /**
+     * The thread pool or {@code null} if the tasks run on virtual threads.
+     */
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger unfinishedTasks = new AtomicInteger();
+    private final int capacity;
+    private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+    // Metrics
+    private final LongAdder completedTasks = new LongAdder();
+    private final LongAdder totalQueueTime = new LongAdder();
+    private final LongAccumulator maxQueueTime = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxQueueDepth = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Creates a delivery executor.
+     *
+     * @param threads  number of threads
+     * @param capacity queue depth at which the executor is saturated
+     */
+    public DeliveryExecutor(int threads, int capacity) {
+        this(new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("delivery-%d").setDaemon(true).build()), capacity);
+    }
+
+    private DeliveryExecutor(ExecutorService executor, int capacity) {
+        this.executor = executor;
+        this.pool = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a delivery executor.
+     *
+     * @param virtualThreads {@code true} to run the tasks on virtual threads if the runtime supports them
+     * @param threads        number of threads of the pool
+     * @param capacity       queue depth or number of unfinished virtual thread tasks at which the executor
+     *                       is saturated
+     * @return the delivery executor with virtual threads if requested and supported or with a thread
+     *     pool otherwise
+     */
+    public static DeliveryExecutor create(boolean virtualThreads, int threads, int capacity) {
+        if (virtualThreads) {
+            try {
+                // Java 21+ API called reflectively to keep the Java 8 target:
+                // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("delivery-", 0).factory())
+                final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builderClass.getMethod("name", String.class, long.class).invoke(builder, "delivery-", 0L);
+                final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                final ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+                logger.info("Using virtual threads for the mailbox I/O");
+                return new DeliveryExecutor(executor, capacity);
+            } catch (ReflectiveOperationException ex) {
+                logger.warn("Virtual threads are not supported by the runtime, falling back to {} threads", threads);
+            }
+        }
+        return new DeliveryExecutor(threads, capacity);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        final long enqueued = System.nanoTime();
+        unfinishedTasks.incrementAndGet();
+        executor.execute(() -> {
+            final long queueTime = System.nanoTime() - enqueued;
+            totalQueueTime.add(queueTime);
+            maxQueueTime.accumulate(queueTime);
+            try {
+                task.run();
+            } finally {
+                unfinishedTasks.decrementAndGet();
+                completedTasks.increment();
+                if (!waiters.isEmpty() && getQueueDepth() <= capacity / 2) {
+                    Runnable waiter;
+                    while ((waiter = waiters.poll()) != null) {
+                        waiter.run();
+                    }
+                }
+            }
+        });
+        maxQueueDepth.accumulate(getQueueDepth());
+    }
+
+    /**
+     * Tests if the queue depth has reached the capacity.
+     *
+     * @return {@code true} if the executor is saturated
+     */
+    public boolean isSaturated() {
+        return getQueueDepth() >= capacity;
+    }
+
+    /**
+     * Runs the callback when the executor queue is drained to the half of its capacity. The callback
+     * runs immediately if the executor is not saturated.
+     *
+     * @param callback callback to run
+     */
+    public void whenAvailable(Runnable callback) {
+        if (!isSaturated()) {
+            callback.run();
+        } else {
+            waiters.add(callback);
+            // The queue could be drained while the callback was being added
+            if (!isSaturated() && waiters.remove(callback)) {
+                callback.run();
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of tasks waiting for a pool thread or the number of unfinished tasks if the tasks
+     * run on virtual threads.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return pool != null ? pool.getQueue().size() : unfinishedTasks.get();
+    }
+
+    /**
+     * Tests if the tasks run on virtual threads.
+     *
+     * @return {@code true} if the tasks run on virtual threads
+     */
+    public boolean isVirtual() {
+        return pool == null;
+    }
+
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.sum();
+    }
+
+    /**
+     * Gets the average time the tasks have spent in the queue.
+     *
+     * @param unit time unit
+     * @return the average time in queue
+     */
+    public long getAverageQueueTime(TimeUnit unit) {
+        final long completed = completedTasks.sum();
+        return completed == 0 ? 0 : unit.convert(totalQueueTime.sum() / completed, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the maximum time a task has spent in the queue.
+     *
+     * @param unit time unit
+     * @return the maximum time in queue
+     */
+    public long getMaxQueueTime(TimeUnit unit) {
+        return unit.convert(maxQueueTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Shuts down the executor. Already submitted tasks are completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        logger.info("Delivery executor: {} tasks completed, max queue depth {}, "
+                + "average time in queue {} us, max time in queue {} us",
+            getCompletedTasks(), getMaxQueueDepth(),
+            getAverageQueueTime(TimeUnit.MICROSECONDS), getMaxQueueTime(TimeUnit.MICROSECONDS));
+    }
+}
@@ -17,21 +17,27 @@
 package ru.eugenehr.testmailserver;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInboundHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.ssl.SslContext;
 import io.netty.handler.timeout.IdleStateHandler;
-import io.netty.util.CharsetUtil;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -39,6 +45,12 @@ import org.apache.commons.cli.Options;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ru.eugenehr.testmailserver.store.Durability;
+import ru.eugenehr.testmailserver.store.FileMailStore;
+import ru.eugenehr.testmailserver.store.MailStore;
+import ru.eugenehr.testmailserver.store.MaildirMailStore;
+import ru.eugenehr.testmailserver.store.MemoryMailStore;
+import ru.eugenehr.testmailserver.store.SegmentMailStore;
 import ru.eugenehr.testmailserver.ui.Application;
 
 /**
@@ -49,20 +61,80 @@ import ru.eugenehr.testmailserver.ui.Application;
 public class MailServer {
 
     private static final Logger logger = LoggerFactory.getLogger(MailServer.class);
+    private static final int MAX_LINE_LENGTH = 16384;
+    private static final int DEFAULT_DELIVERY_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_DELIVERY_QUEUE = 1024;
+    private static final int DEFAULT_SPOOL_THRESHOLD = 65536;
+    private static final int DEFAULT_GROUP_COMMIT_INTERVAL = 10;
+    private static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final int DEFAULT_TLS_SESSION_CACHE = 10240;
+    private static final int DEFAULT_TLS_SESSION_TIMEOUT = 3600;
     static MailServer INSTANCE; // package visible for testing purpose
     //
-    private final NioEventLoopGroup bossGroup = new DaemonEventLoopGroup("listener-");
-    private final NioEventLoopGroup workerGroup = new DaemonEventLoopGroup("worker-");
+    private final Transport transport;
+    /**
+     * Event loop groups of the protocols, created when the protocol server starts for the first time.
+     */
+    private EventLoopGroup smtpBossGroup;
+    private EventLoopGroup smtpWorkerGroup;
+    private EventLoopGroup pop3BossGroup;
+    private EventLoopGroup pop3WorkerGroup;
     private final Mailboxes mailboxes;
+    private final DeliveryExecutor deliveryExecutor;
+    private final AdmissionControl admissionControl = new AdmissionControl();
+    /**
+     * Shaping of the aggregate read bandwidth or {@code null} if the bandwidth is not limited.
+     */
+    private volatile GlobalTrafficShapingHandler trafficShaping;
+    private EventExecutor trafficShapingExecutor;
     //
     private int smtpPort = 2500;
-    private Channel smtpChannel;
+    private List<Channel> smtpChannels = Collections.emptyList();
     private int pop3Port = 1100;
-    private Channel pop3Channel;
+    private List<Channel> pop3Channels = Collections.emptyList();
+    private List<Channel> smtpsChannels = Collections.emptyList();
+    private List<Channel> pop3sChannels = Collections.emptyList();
+    /**
+     * Server TLS context or {@code null} if TLS is not configured.
+     */
+    private volatile SslContext sslContext;
+    /**
+     * Maximum length of the queue of incoming connections.
+     */
+    private int backlog = DEFAULT_BACKLOG;
+    /**
+     * Number of listening sockets per port. Requires the native transport.
+     */
+    private int acceptors = 1;
+    /**
+     * Number of SMTP event loop threads or 0 for the Netty default.
+     */
+    private int smtpThreads;
+    /**
+     * Number of POP3 event loop threads or 0 for the Netty default.
+     */
+    private int pop3Threads;
     /**
      * {@code true} if all incoming SMTP messages must be redirected to the senders mailbox.
      */
     private boolean redirectToSender;
+    /**
+     * Maximum size of SMTP message in bytes or 0 if the size is not limited.
+     */
+    private long maxMessageSize;
+    /**
+     * Maximum number of recipients of SMTP message or 0 if the number is not limited.
+     */
+    private int maxRecipients;
+    /**
+     * Maximum size of SMTP message kept in memory before it is spilled to a temporary file.
+     */
+    private int spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+    /**
+     * {@code true} if the incoming SMTP messages must be stored compressed.
+     */
+    private boolean compress;
 
     /**
      * Creates a server channel manager.
@@ -70,7 +142,30 @@ public class MailServer {
      * @param mailboxes user mailboxes manager
      */
     public MailServer(Mailboxes mailboxes) {
+        this(mailboxes, new DeliveryExecutor(DEFAULT_DELIVERY_THREADS, DEFAULT_DELIVERY_QUEUE));
+    }
+
+    /**
+     * Creates a server channel manager.
+     *
+     * @param mailboxes        user mailboxes manager
+     * @param deliveryExecutor executor for the mailbox I/O
+     */
+    public MailServer(Mailboxes mailboxes, DeliveryExecutor deliveryExecutor) {
+        this(mailboxes, deliveryExecutor, Transport.NIO);
+    }
+
+    /**
+     * Creates a server channel manager.
+     *
+     * @param mailboxes        user mailboxes manager
+     * @param deliveryExecutor executor for the mailbox I/O
+     * @param transport        network transport
+     */
+    public MailServer(Mailboxes mailboxes, DeliveryExecutor deliveryExecutor, Transport transport) {
         this.mailboxes = mailboxes;
+        this.deliveryExecutor = deliveryExecutor;
+        this.transport = transport;
     }
 
     public static MailServer getInstance() {
@@ -94,11 +189,73 @@ public class MailServer {
             "SMTP port to listen to");
         options.addOption("sr", "smtp-redirect", false,
             "Redirect all incoming messages to sender");
+        options.addOption("ss", "smtp-max-size", true,
+            "Maximum size of incoming messages in bytes. Default is 0 (not limited)");
+        options.addOption("st", "spool-threshold", true,
+            "Maximum size in bytes of incoming message kept in memory. Default is " + DEFAULT_SPOOL_THRESHOLD);
+        options.addOption("z", "compress", false,
+            "Store incoming messages compressed");
         options.addOption("p", "pop3-port", true,
             "POP3 port to listen to");
+        options.addOption("dt", "delivery-threads", true,
+            "Number of threads for the mailbox I/O. Default is " + DEFAULT_DELIVERY_THREADS);
+        options.addOption("dq", "delivery-queue", true,
+            "Mailbox I/O queue depth at which clients stop being read. Default is " + DEFAULT_DELIVERY_QUEUE);
+        options.addOption("vt", "virtual-threads", false,
+            "Run the mailbox I/O on virtual threads if the Java runtime supports them (Java 21+)");
+        options.addOption("du", "durability", true,
+            "Durability of delivered messages: none, fsync or group. Default is none");
+        options.addOption("gi", "group-commit-interval", true,
+            "Maximum time in milliseconds a message waits for the group commit. Default is "
+                + DEFAULT_GROUP_COMMIT_INTERVAL);
+        options.addOption("gs", "group-commit-size", true,
+            "Maximum number of messages synced by the group commit at once. Default is " + DEFAULT_GROUP_COMMIT_SIZE);
+        options.addOption("n", "native", false,
+            "Use the native epoll transport if available (Linux only)");
+        options.addOption("bl", "backlog", true,
+            "Maximum length of the queue of incoming connections. Default is " + DEFAULT_BACKLOG);
+        options.addOption("ac", "acceptors", true,
+            "Number of listening sockets per port bound with SO_REUSEPORT (native transport only). Default is 1");
+        options.addOption("sth", "smtp-threads", true,
+            "Number of SMTP event loop threads. Default is twice the number of CPU cores");
+        options.addOption("pth", "pop3-threads", true,
+            "Number of POP3 event loop threads. Default is twice the number of CPU cores");
+        options.addOption("ks", "keystore", true,
+            "PKCS12 or JKS key store with the server key and certificate. Enables STARTTLS and STLS");
+        options.addOption("kp", "keystore-password", true,
+            "Password of the key store and the key");
+        options.addOption("sp", "smtps-port", true,
+            "SMTP port with implicit TLS to listen to. Requires a key store");
+        options.addOption("pp", "pop3s-port", true,
+            "POP3 port with implicit TLS to listen to. Requires a key store");
+        options.addOption("tc", "tls-session-cache", true,
+            "Maximum number of cached TLS sessions. Default is " + DEFAULT_TLS_SESSION_CACHE);
+        options.addOption("tt", "tls-session-timeout", true,
+            "TLS session timeout in seconds. Default is " + DEFAULT_TLS_SESSION_TIMEOUT);
+        options.addOption("ms", "max-sessions", true,
+            "Maximum number of concurrent sessions. Default is 0 (not limited)");
+        options.addOption("mi", "max-sessions-per-ip", true,
+            "Maximum number of concurrent sessions from a single IP address. Default is 0 (not limited)");
+        options.addOption("cr", "connection-rate", true,
+            "Maximum number of new connections per second. Default is 0 (not limited)");
+        options.addOption("mr", "max-recipients", true,
+            "Maximum number of recipients of a message. Default is 0 (not limited)");
+        options.addOption("rl", "read-limit", true,
+            "Maximum aggregate read bandwidth of all sessions in bytes per second. Default is 0 (not limited)");
         options.addOption("c", "console", false, "Start application in console mode with no GUI");
         options.addOption("m", "mail-dir", true,
             "Directory to store mailboxes. Default is " + mailboxesDir.getPath());
+        options.addOption("mt", "mail-store", true,
+            "Mail store: file, maildir (Maildir directories), segment (segment files in the mail directory), "
+                + "memory (Java heap) or offheap (direct memory). Default is file");
+        options.addOption("ma", "max-age", true,
+            "Maximum age of stored messages in seconds. Default is 0 (not limited)");
+        options.addOption("mm", "mailbox-max-messages", true,
+            "Maximum number of messages in a mailbox. Default is 0 (not limited)");
+        options.addOption("mb", "mailbox-max-bytes", true,
+            "Maximum total size of messages in a mailbox in bytes. Default is 0 (not limited)");
+        options.addOption("qt", "quota", true,
+            "Maximum total size of all stored messages in bytes. Default is 0 (not limited)");
 
         final CommandLine cmdLine;
         try {
@@ -113,15 +270,101 @@ public class MailServer {
             return;
         }
 
-        mailboxesDir = new File(cmdLine.getOptionValue("m", mailboxesDir.getPath()));
-        if (!mailboxesDir.exists()) {
-            if (!mailboxesDir.mkdirs()) {
-                logger.error("Could not create directory '{}'", mailboxesDir.getAbsolutePath());
+        final String durabilityOption = cmdLine.getOptionValue("du", "none");
+        final Durability durability;
+        final long groupCommitInterval;
+        final int groupCommitSize;
+        try {
+            durability = "group".equalsIgnoreCase(durabilityOption)
+                ? Durability.GROUP_COMMIT
+                : Durability.valueOf(durabilityOption.toUpperCase());
+            groupCommitInterval = Long.valueOf(
+                cmdLine.getOptionValue("gi", Integer.toString(DEFAULT_GROUP_COMMIT_INTERVAL)));
+            groupCommitSize = Integer.valueOf(
+                cmdLine.getOptionValue("gs", Integer.toString(DEFAULT_GROUP_COMMIT_SIZE)));
+        } catch (IllegalArgumentException ex) {
+            new HelpFormatter().printHelp("test-mail-server", options);
+            return;
+        }
+
+        final MailStore store;
+        final String storeType = cmdLine.getOptionValue("mt", "file");
+        if ("memory".equalsIgnoreCase(storeType) || "offheap".equalsIgnoreCase(storeType)) {
+            logger.info("Using '{}' mail store, messages are lost on shutdown", storeType.toLowerCase());
+            if (durability != Durability.NONE) {
+                logger.warn("Durability '{}' is ignored by '{}' mail store", durabilityOption.toLowerCase(),
+                    storeType.toLowerCase());
+            }
+            store = new MemoryMailStore("offheap".equalsIgnoreCase(storeType));
+        } else if ("segment".equalsIgnoreCase(storeType)) {
+            final SegmentMailStore segmentStore;
+            try {
+                segmentStore = new SegmentMailStore(new File(cmdLine.getOptionValue("m", mailboxesDir.getPath())));
+            } catch (IOException ex) {
+                logger.error("Could not open mail store: {}", ex.getMessage());
                 return;
             }
+            segmentStore.setDurability(durability, groupCommitInterval, groupCommitSize);
+            store = segmentStore;
+        } else if ("file".equalsIgnoreCase(storeType) || "maildir".equalsIgnoreCase(storeType)) {
+            mailboxesDir = new File(cmdLine.getOptionValue("m", mailboxesDir.getPath()));
+            if (!mailboxesDir.exists()) {
+                if (!mailboxesDir.mkdirs()) {
+                    logger.error("Could not create directory '{}'", mailboxesDir.getAbsolutePath());
+                    return;
+                }
+            }
+            if ("maildir".equalsIgnoreCase(storeType)) {
+                final MaildirMailStore maildirStore = new MaildirMailStore(mailboxesDir);
+                maildirStore.setDurability(durability, groupCommitInterval, groupCommitSize);
+                store = maildirStore;
+            } else {
+                final FileMailStore fileStore = new FileMailStore(mailboxesDir);
+                fileStore.setDurability(durability, groupCommitInterval, groupCommitSize);
+                store = fileStore;
+            }
+        } else {
+            new HelpFormatter().printHelp("test-mail-server", options);
+            return;
         }
-        INSTANCE = new MailServer(new Mailboxes(mailboxesDir));
+        final DeliveryExecutor deliveryExecutor = DeliveryExecutor.create(cmdLine.hasOption("vt"),
+            Integer.valueOf(cmdLine.getOptionValue("dt", Integer.toString(DEFAULT_DELIVERY_THREADS))),
+            Integer.valueOf(cmdLine.getOptionValue("dq", Integer.toString(DEFAULT_DELIVERY_QUEUE))));
+        final Mailboxes mailboxes = new Mailboxes(store);
+        mailboxes.getRetention().setMaxAge(Long.valueOf(cmdLine.getOptionValue("ma", "0")));
+        mailboxes.getRetention().setMaxMessages(Integer.valueOf(cmdLine.getOptionValue("mm", "0")));
+        mailboxes.getRetention().setMaxBytes(Long.valueOf(cmdLine.getOptionValue("mb", "0")));
+        mailboxes.getRetention().setQuota(Long.valueOf(cmdLine.getOptionValue("qt", "0")));
+        INSTANCE = new MailServer(mailboxes, deliveryExecutor, Transport.select(cmdLine.hasOption("n")));
+        INSTANCE.backlog = Integer.valueOf(cmdLine.getOptionValue("bl", Integer.toString(DEFAULT_BACKLOG)));
+        INSTANCE.acceptors = Integer.valueOf(cmdLine.getOptionValue("ac", "1"));
+        INSTANCE.smtpThreads = Integer.valueOf(cmdLine.getOptionValue("sth", "0"));
+        INSTANCE.pop3Threads = Integer.valueOf(cmdLine.getOptionValue("pth", "0"));
         INSTANCE.redirectToSender = cmdLine.hasOption("sr");
+        INSTANCE.maxMessageSize = Long.valueOf(cmdLine.getOptionValue("ss", "0"));
+        INSTANCE.maxRecipients = Integer.valueOf(cmdLine.getOptionValue("mr", "0"));
+        INSTANCE.admissionControl.setMaxSessions(Integer.valueOf(cmdLine.getOptionValue("ms", "0")));
+        INSTANCE.admissionControl.setMaxSessionsPerAddress(Integer.valueOf(cmdLine.getOptionValue("mi", "0")));
+        INSTANCE.admissionControl.setMaxConnectionRate(Integer.valueOf(cmdLine.getOptionValue("cr", "0")));
+        INSTANCE.setReadLimit(Long.valueOf(cmdLine.getOptionValue("rl", "0")));
+        INSTANCE.spoolThreshold = Integer.valueOf(
+            cmdLine.getOptionValue("st", Integer.toString(DEFAULT_SPOOL_THRESHOLD)));
+        INSTANCE.compress = cmdLine.hasOption("z");
+        if (INSTANCE.compress) {
+            logger.info("Storing incoming messages compressed");
+        }
+
+        if (cmdLine.hasOption("ks")) {
+            final File keyStore = new File(cmdLine.getOptionValue("ks"));
+            try {
+                INSTANCE.sslContext = Tls.serverContext(keyStore, cmdLine.getOptionValue("kp", "").toCharArray(),
+                    Long.valueOf(cmdLine.getOptionValue("tc", Integer.toString(DEFAULT_TLS_SESSION_CACHE))),
+                    Long.valueOf(cmdLine.getOptionValue("tt", Integer.toString(DEFAULT_TLS_SESSION_TIMEOUT))));
+            } catch (Exception ex) {
+                logger.error("Could not load key store '{}': {}", keyStore.getAbsolutePath(), ex.getMessage());
+                return;
+            }
+        }
 
         int port = Integer.valueOf(cmdLine.getOptionValue("s", "0"));
         if (port > 0) {
@@ -133,7 +376,18 @@ public class MailServer {
             INSTANCE.startPOP3(port);
         }
 
-        if (INSTANCE.smtpChannel == null && INSTANCE.pop3Channel == null && cmdLine.hasOption("c")) {
+        port = Integer.valueOf(cmdLine.getOptionValue("sp", "0"));
+        if (port > 0) {
+            INSTANCE.startSMTPOverTls(port);
+        }
+
+        port = Integer.valueOf(cmdLine.getOptionValue("pp", "0"));
+        if (port > 0) {
+            INSTANCE.startPOP3OverTls(port);
+        }
+
+        if (INSTANCE.smtpChannels.isEmpty() && INSTANCE.pop3Channels.isEmpty() && INSTANCE.smtpsChannels.isEmpty()
+            && INSTANCE.pop3sChannels.isEmpty() && cmdLine.hasOption("c")) {
             new HelpFormatter().printHelp("test-mail-server", options);
             return;
         }
@@ -145,11 +399,17 @@ public class MailServer {
             // Add shutdown hook
             Runtime.getRuntime().addShutdownHook(new Thread(INSTANCE::shutdown));
             // Wait for channels
-            if (INSTANCE.smtpChannel != null) {
-                INSTANCE.smtpChannel.closeFuture().sync();
+            for (Channel channel : INSTANCE.smtpChannels) {
+                channel.closeFuture().sync();
             }
-            if (INSTANCE.pop3Channel != null) {
-                INSTANCE.pop3Channel.closeFuture().sync();
+            for (Channel channel : INSTANCE.pop3Channels) {
+                channel.closeFuture().sync();
+            }
+            for (Channel channel : INSTANCE.smtpsChannels) {
+                channel.closeFuture().sync();
+            }
+            for (Channel channel : INSTANCE.pop3sChannels) {
+                channel.closeFuture().sync();
             }
         }
     }
@@ -160,7 +420,7 @@ public class MailServer {
      * @return {@code true} if SMTP started and alive
      */
     public boolean isSMTPStarted() {
-        return smtpChannel != null && smtpChannel.isActive();
+        return !smtpChannels.isEmpty() && smtpChannels.get(0).isActive();
     }
 
     /**
@@ -173,7 +433,10 @@ public class MailServer {
         stopSMTP();
         logger.info("Starting SMTP server on port {}...", port);
         smtpPort = port;
-        return smtpChannel = startChannel(port, new SMTPHandler());
+        initSmtpGroups();
+        smtpChannels = startChannel(port, smtpBossGroup, smtpWorkerGroup,
+            () -> new SMTPDecoder(MAX_LINE_LENGTH), new SMTPHandler(), false);
+        return smtpChannels.get(0);
     }
 
     /**
@@ -182,8 +445,8 @@ public class MailServer {
     public void stopSMTP() {
         if (isSMTPStarted()) {
             logger.info("Stopping SMTP server...");
-            stopChannel(smtpChannel);
-            smtpChannel = null;
+            stopChannels(smtpChannels);
+            smtpChannels = Collections.emptyList();
         }
     }
 
@@ -191,13 +454,30 @@ public class MailServer {
         return smtpPort;
     }
 
+    /**
+     * Starts the SMTP server with implicit TLS on the given port. Shares the event loops with the
+     * plain text SMTP server.
+     *
+     * @param port port to listen to
+     * @throws Exception if any
+     */
+    public Channel startSMTPOverTls(int port) throws Exception {
+        requireTls();
+        stopChannels(smtpsChannels);
+        logger.info("Starting SMTP server with implicit TLS on port {}...", port);
+        initSmtpGroups();
+        smtpsChannels = startChannel(port, smtpBossGroup, smtpWorkerGroup,
+            () -> new SMTPDecoder(MAX_LINE_LENGTH), new SMTPHandler(), true);
+        return smtpsChannels.get(0);
+    }
+
     /**
      * Tests if POP3 server started.
      *
      * @return {@code true} if POP3 started and alive
      */
     public boolean isPOP3Started() {
-        return pop3Channel != null && pop3Channel.isActive();
+        return !pop3Channels.isEmpty() && pop3Channels.get(0).isActive();
     }
 
     /**
@@ -210,7 +490,10 @@ public class MailServer {
         stopPOP3();
         logger.info("Starting POP3 server on port {}...", port);
         pop3Port = port;
-        return pop3Channel = startChannel(port, new POP3Handler());
+        initPop3Groups();
+        pop3Channels = startChannel(port, pop3BossGroup, pop3WorkerGroup,
+            () -> new POP3Decoder(MAX_LINE_LENGTH), new POP3Handler(), false);
+        return pop3Channels.get(0);
     }
 
     /**
@@ -219,8 +502,8 @@ public class MailServer {
     public void stopPOP3() {
         if (isPOP3Started()) {
             logger.info("Stopping SMTP server...");
-            stopChannel(pop3Channel);
-            pop3Channel = null;
+            stopChannels(pop3Channels);
+            pop3Channels = Collections.emptyList();
         }
     }
 
@@ -228,9 +511,48 @@ public class MailServer {
         return pop3Port;
     }
 
-    private void stopChannel(Channel channel) {
-        if (channel != null && channel.isActive()) {
-            channel.close();
+    /**
+     * Starts the POP3 server with implicit TLS on the given port. Shares the event loops with the
+     * plain text POP3 server.
+     *
+     * @param port port to listen to
+     * @throws Exception if any
+     */
+    public Channel startPOP3OverTls(int port) throws Exception {
+        requireTls();
+        stopChannels(pop3sChannels);
+        logger.info("Starting POP3 server with implicit TLS on port {}...", port);
+        initPop3Groups();
+        pop3sChannels = startChannel(port, pop3BossGroup, pop3WorkerGroup,
+            () -> new POP3Decoder(MAX_LINE_LENGTH), new POP3Handler(), true);
+        return pop3sChannels.get(0);
+    }
+
+    private void initSmtpGroups() {
+        if (smtpWorkerGroup == null) {
+            smtpBossGroup = transport.newEventLoopGroup("smtp-listener-", acceptorThreads());
+            smtpWorkerGroup = transport.newEventLoopGroup("smtp-worker-", smtpThreads);
+        }
+    }
+
+    private void initPop3Groups() {
+        if (pop3WorkerGroup == null) {
+            pop3BossGroup = transport.newEventLoopGroup("pop3-listener-", acceptorThreads());
+            pop3WorkerGroup = transport.newEventLoopGroup("pop3-worker-", pop3Threads);
+        }
+    }
+
+    private void requireTls() {
+        if (sslContext == null) {
+            throw new IllegalStateException("TLS is not configured");
+        }
+    }
+
+    private void stopChannels(List<Channel> channels) {
+        for (Channel channel : channels) {
+            if (channel.isActive()) {
+                channel.close();
+            }
         }
     }
 
@@ -242,56 +564,221 @@ public class MailServer {
         this.redirectToSender = redirectToSender;
     }
 
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public void setMaxMessageSize(long maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    public void setMaxRecipients(int maxRecipients) {
+        this.maxRecipients = maxRecipients;
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public long getReadLimit() {
+        final GlobalTrafficShapingHandler shaping = trafficShaping;
+        return shaping == null ? 0 : shaping.getReadLimit();
+    }
+
+    /**
+     * Sets the limit of the aggregate read bandwidth of all sessions. The sessions stop being read
+     * for a while when the limit is exceeded. Applies to the sessions opened after the first
+     * non-zero limit is set.
+     *
+     * @param readLimit maximum number of bytes per second or 0 for no limit
+     */
+    public synchronized void setReadLimit(long readLimit) {
+        if (trafficShaping != null) {
+            trafficShaping.setReadLimit(readLimit);
+        } else if (readLimit > 0) {
+            trafficShapingExecutor = new DefaultEventExecutor(new DaemonThreadFactory("traffic-shaping-"));
+            trafficShaping = new GlobalTrafficShapingHandler(trafficShapingExecutor, 0, readLimit);
+        }
+    }
+
+    public int getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    public void setSpoolThreshold(int spoolThreshold) {
+        this.spoolThreshold = spoolThreshold;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public int getSmtpThreads() {
+        return smtpThreads;
+    }
+
+    /**
+     * Sets the number of SMTP event loop threads. Takes effect if set before the SMTP server is started
+     * for the first time.
+     *
+     * @param smtpThreads number of threads or 0 for the Netty default
+     */
+    public void setSmtpThreads(int smtpThreads) {
+        this.smtpThreads = smtpThreads;
+    }
+
+    public int getPop3Threads() {
+        return pop3Threads;
+    }
+
+    /**
+     * Sets the number of POP3 event loop threads. Takes effect if set before the POP3 server is started
+     * for the first time.
+     *
+     * @param pop3Threads number of threads or 0 for the Netty default
+     */
+    public void setPop3Threads(int pop3Threads) {
+        this.pop3Threads = pop3Threads;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    public SslContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Sets the server TLS context. Enables {@code STARTTLS} and {@code STLS} for new sessions.
+     *
+     * @param sslContext server TLS context or {@code null} to disable TLS
+     */
+    public void setSslContext(SslContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
     public Mailboxes getMailboxes() {
         return mailboxes;
     }
 
+    public DeliveryExecutor getDeliveryExecutor() {
+        return deliveryExecutor;
+    }
+
     /**
      * Shuts down all servers and close all listening sockets.
      */
     public void shutdown() {
-        stopChannel(smtpChannel);
-        stopChannel(pop3Channel);
-
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
+        stopChannels(smtpChannels);
+        stopChannels(pop3Channels);
+        stopChannels(smtpsChannels);
+        stopChannels(pop3sChannels);
+
+        for (EventLoopGroup group : Arrays.asList(smtpBossGroup, smtpWorkerGroup, pop3BossGroup, pop3WorkerGroup)) {
+            if (group != null) {
+                group.shutdownGracefully();
+            }
+        }
+        if (trafficShaping != null) {
+            trafficShaping.release();
+            trafficShapingExecutor.shutdownGracefully();
+        }
+        deliveryExecutor.shutdown();
+        mailboxes.shutdown();
     }
 
     /**
      * Adds and starts a new server.
      *
-     * @param port    TCP port to listen to
-     * @param handler server handler
-     * @return server channel
+     * @param port         TCP port to listen to
+     * @param bossGroup    event loop group of the listening sockets
+     * @param workerGroup  event loop group of the client connections
+     * @param frameDecoder protocol frame decoder factory
+     * @param handler      server handler
+     * @param implicitTls  {@code true} if the connections are encrypted from the first byte
+     * @return server channels listening to the port
      */
-    private Channel startChannel(int port, ChannelInboundHandler handler) throws Exception {
-        final Channel channel = new ServerBootstrap()
+    private List<Channel> startChannel(int port, EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+        Supplier<ChannelHandler> frameDecoder, ChannelInboundHandler handler, boolean implicitTls) throws Exception {
+        final SslContext tlsContext = implicitTls ? sslContext : null;
+        final ServerBootstrap bootstrap = new ServerBootstrap()
             .group(bossGroup, workerGroup)
-            .channel(NioServerSocketChannel.class)
+            .channel(transport.serverChannelClass())
             .childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 protected void initChannel(SocketChannel channel) throws Exception {
+                    final GlobalTrafficShapingHandler shaping = trafficShaping;
+                    if (shaping != null) {
+                        // Shape the bytes as received, before decryption
+                        channel.pipeline().addLast("trafficShaping", shaping);
+                    }
+                    if (tlsContext != null) {
+                        channel.pipeline().addLast(Tls.HANDLER_NAME,
+                            Tls.newHandler(tlsContext, channel.alloc(), false));
+                    }
                     // Keep alive timeout
                     channel.pipeline().addLast("keepAliveHandler",
                         new IdleStateHandler(60, 30, 0));
-                    // Line delimeter based decoder
-                    channel.pipeline().addLast("frameDecoder",
-                        new DelimiterBasedFrameDecoder(16384, Delimiters.lineDelimiter()));
-                    // String decoder
-                    channel.pipeline().addLast("stringDecoder",
-                        new StringDecoder(CharsetUtil.US_ASCII));
-                    // Line delimeter based decoder
-                    channel.pipeline().addLast("stringEncoder", new StringEncoder(CharsetUtil.US_ASCII));
+                    // Protocol frame decoder
+                    channel.pipeline().addLast("frameDecoder", frameDecoder.get());
                     // Protocol handler
                     channel.pipeline().addLast(handler);
                 }
             })
-            .option(ChannelOption.SO_BACKLOG, 128)
-            .childOption(ChannelOption.SO_KEEPALIVE, true)
-            .bind(port)
-            .channel();
-        syncChannel(channel);
-        return channel;
+            .option(ChannelOption.SO_BACKLOG, backlog)
+            .childOption(ChannelOption.SO_KEEPALIVE, true);
+
+        int count = 1;
+        if (acceptors > 1) {
+            if (transport == Transport.EPOLL) {
+                // The kernel spreads the incoming connections across the sockets
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+                count = acceptors;
+            } else {
+                logger.warn("Multiple acceptors require the native transport, using a single acceptor");
+            }
+        }
+        final List<Channel> channels = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Channel channel = bootstrap.bind(port).channel();
+            syncChannel(channel);
+            channels.add(channel);
+        }
+        return channels;
+    }
+
+    /**
+     * Gets the number of threads of the listening sockets event loop group, one thread per listening socket.
+     *
+     * @return the number of threads
+     */
+    private int acceptorThreads() {
+        return transport == Transport.EPOLL ? Math.max(1, acceptors) : 1;
     }
 
     /**
@@ -16,55 +16,51 @@
 
 package ru.eugenehr.testmailserver;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
 import java.util.Collections;
-import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ru.eugenehr.testmailserver.event.MailboxEvent;
-import ru.eugenehr.testmailserver.event.MailboxEvent.Type;
-import ru.eugenehr.testmailserver.ui.UIEventBus;
+import ru.eugenehr.testmailserver.store.MailStore;
 
 /**
  * Mailboxes manager.
  *
+ * <p>Routes the received messages to the user mailboxes, names them with unique message IDs and
+ * keeps them in the {@link MailStore} within the limits of the {@link Retention}.
+ *
  * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
  */
 public class Mailboxes {
 
     private static final Logger logger = LoggerFactory.getLogger(Mailboxes.class);
-    private static final SimpleDateFormat SDF = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+    private static final MessageIdGenerator MESSAGE_IDS = new MessageIdGenerator();
 
-    private File root;
+    private final MailStore store;
+    private final Retention retention;
 
     /**
      * Creates a mailboxes manager.
      *
-     * @param root path to root directory to store user mailboxes
+     * @param store storage of the user mailboxes
      */
-    public Mailboxes(File root) {
-        this.root = root;
+    public Mailboxes(MailStore store) {
+        this.store = store;
+        this.retention = new Retention(store);
     }
 
-    public File getRoot() {
-        return root;
+    public MailStore getStore() {
+        return store;
     }
 
-    public void setRoot(File root) {
-        logger.info("Using '{}' directory to store user mailboxes", root.getAbsolutePath());
-        this.root = root;
+    public Retention getRetention() {
+        return retention;
     }
 
     /**
@@ -73,38 +69,53 @@ public class Mailboxes {
      * @return the list of mailboxes
      */
     public Set<String> getMailboxes() {
-        try {
-            return Files.walk(getRoot().toPath(), 1)
-                .map(Path::toFile)
-                .filter(File::isDirectory)
-                .filter(file -> getRoot().equals(file.getParentFile()))
-                .filter(file -> {
-                    final File[] files = file.listFiles((dir, name) -> name != null && name.endsWith(".msg"));
-                    return files != null && files.length > 0;
-                })
-                .map(File::getName)
-                .collect(Collectors.toSet());
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
+        return store.getMailboxes();
     }
 
     /**
      * Lookup for all messages in the given mailbox.
      *
      * @param mailbox mailbox to lookup
-     * @return the list of mail messages
+     * @return the live read-only view of the sorted mail messages
      */
     public Set<String> getMessages(String mailbox) {
-        final Set<String> mails = new TreeSet<>();
-        final File dir = new File(getRoot(), mailbox);
-        if (dir.exists() && dir.isDirectory()) {
-            final Iterator<File> iterator = FileUtils.iterateFiles(dir, new String[]{"msg"}, false);
-            while (iterator.hasNext()) {
-                mails.add(iterator.next().getName());
-            }
-        }
-        return mails;
+        return store.getMessages(mailbox);
+    }
+
+    /**
+     * Gets the size of a message.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the size in bytes or 0 if there is no such message
+     */
+    public long getMessageSize(String mailbox, String message) {
+        return store.getMessageSize(mailbox, message);
+    }
+
+    /**
+     * Opens a message for reading.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the message content, to be closed by the caller, or {@code null} if there is no such
+     *     message
+     * @throws IOException if the message could not be read
+     */
+    public InputStream openMessage(String mailbox, String message) throws IOException {
+        return store.openMessage(mailbox, message);
+    }
+
+    /**
+     * Gets the metadata of a message computed when it was delivered.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the metadata or {@code null} if there is no such message
+     * @throws IOException if the metadata is unknown and the message could not be read
+     */
+    public MessageMetadata getMetadata(String mailbox, String message) throws IOException {
+        return store.getMetadata(mailbox, message);
     }
 
     /**
@@ -113,40 +124,50 @@ public class Mailboxes {
      * @param from    message sender
      * @param to      message recipients
      * @param message the message
-     * @return the list of files in users mailboxes
+     * @return the future completed when the message is safe to acknowledge
+     * @throws IOException if the message could not be stored
      */
-    public Set<String> addMessage(String from, List<String> to, File message) {
-        final String fileName = SDF.format(new Date()) + ".msg";
-
+    public CompletableFuture<Void> addMessage(String from, List<String> to, MessageSpool message)
+        throws IOException {
         final Set<String> destinations;
         if (MailServer.getInstance().isRedirectToSender()) {
             destinations = Collections.singleton(stripRecipient(from));
         } else {
             destinations = to.stream().map(this::stripRecipient).collect(Collectors.toSet());
         }
-        final Set<File> destinationFiles = destinations.stream()
-            .map(dest -> new File(new File(getRoot(), dest), fileName))
-            .collect(Collectors.toSet());
-
-        destinationFiles.forEach(dest -> copyFile(message, dest));
-
-        // Notify UI
-        destinations.stream()
-            .map(dest -> new MailboxEvent(dest, fileName, Type.CREATED))
-            .forEach(UIEventBus::post);
+        final String messageId = MESSAGE_IDS.nextId();
+        final CompletableFuture<Void> future = store.deliver(destinations, messageId, message);
+        logger.info("Message {} saved to {}", messageId, destinations);
+        return future;
+    }
 
-        return destinationFiles.stream().map(File::getAbsolutePath).collect(Collectors.toSet());
+    /**
+     * Marks a message as seen by the user.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     */
+    public void markSeen(String mailbox, String message) {
+        store.markSeen(mailbox, message);
     }
 
     /**
-     * Gets a message from the mailbox.
+     * Deletes a message from the mailbox.
      *
      * @param mailbox mailbox
-     * @param message message filename
-     * @return the message
+     * @param message message ID
+     * @return {@code true} if the message has been deleted
      */
-    public File getMessage(String mailbox, String message) {
-        return new File(new File(getRoot(), mailbox), message);
+    public boolean deleteMessage(String mailbox, String message) {
+        return store.deleteMessage(mailbox, message);
+    }
+
+    /**
+     * Stops the retention purger, completes the pending deliveries and closes the store.
+     */
+    public void shutdown() {
+        retention.shutdown();
+        store.close();
     }
 
     /**
@@ -165,14 +186,4 @@ public class Mailboxes {
         }
         return recipient;
     }
-
-    private void copyFile(File source, File dest) {
-        try {
-            dest.getParentFile().mkdirs();
-            FileUtils.copyFile(source, dest);
-        } catch (IOException ex) {
-            logger.error("Could not copy file '{}' to '{}': {}", source, dest, ex.getMessage());
-            throw new RuntimeException(ex);
-        }
-    }
 }
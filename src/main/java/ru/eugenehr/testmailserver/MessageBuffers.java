@@ -0,0 +1,178 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
+
+/**
+ * Byte level helpers to send stored mail messages to clients without charset conversion.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+final class MessageBuffers {
+
+    private static final ByteBuf CRLF = Unpooled.unreleasableBuffer(
+        Unpooled.wrappedBuffer(new byte[]{'\r', '\n'}).asReadOnly());
+    private static final ByteBuf DOT = Unpooled.unreleasableBuffer(
+        Unpooled.wrappedBuffer(new byte[]{'.'}).asReadOnly());
+    private static final ByteBuf TERMINATOR = Unpooled.unreleasableBuffer(
+        Unpooled.wrappedBuffer(new byte[]{'.', '\r', '\n'}).asReadOnly());
+
+    private static final int READ_CHUNK_SIZE = 4096;
+
+    private MessageBuffers() {
+    }
+
+    /**
+     * Reads the whole message into a buffer.
+     *
+     * @param in        message content
+     * @param sizeHint  expected message size
+     * @param allocator buffer allocator
+     * @return the message bytes
+     * @throws IOException if the message could not be read
+     */
+    static ByteBuf read(InputStream in, int sizeHint, ByteBufAllocator allocator) throws IOException {
+        // One more byte to detect the end of the message without growing the buffer
+        final ByteBuf buf = allocator.buffer(sizeHint > 0 ? sizeHint + 1 : READ_CHUNK_SIZE);
+        try {
+            while (true) {
+                if (!buf.isWritable()) {
+                    // The message is larger than expected
+                    buf.ensureWritable(READ_CHUNK_SIZE);
+                }
+                if (buf.writeBytes(in, buf.writableBytes()) < 0) {
+                    return buf;
+                }
+            }
+        } catch (IOException ex) {
+            buf.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the message headers, the empty line after them and the given number of the body lines
+     * without reading the rest of the message.
+     *
+     * @param in        message content
+     * @param sizeHint  expected length to read
+     * @param lines     number of body lines
+     * @param allocator buffer allocator
+     * @return the message bytes
+     * @throws IOException if the message could not be read
+     */
+    static ByteBuf readTop(InputStream in, int sizeHint, int lines, ByteBufAllocator allocator) throws IOException {
+        final ByteBuf buf = allocator.buffer(sizeHint > 0 ? sizeHint + 1 : READ_CHUNK_SIZE);
+        try {
+            while (true) {
+                final int length = topLength(buf, lines);
+                if (length < buf.readableBytes()) {
+                    // The requested lines are read completely
+                    return buf.writerIndex(buf.readerIndex() + length);
+                }
+                if (!buf.isWritable()) {
+                    buf.ensureWritable(READ_CHUNK_SIZE);
+                }
+                if (buf.writeBytes(in, buf.writableBytes()) < 0) {
+                    return buf;
+                }
+            }
+        } catch (IOException ex) {
+            buf.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the length of the message headers, the empty line after them and the given number of the body lines.
+     *
+     * @param message message bytes
+     * @param lines   number of body lines
+     * @return the length in bytes
+     */
+    static int topLength(ByteBuf message, int lines) {
+        final int end = message.writerIndex();
+        int index = message.readerIndex();
+        boolean body = false;
+        int lineStart = index;
+        while (index < end) {
+            if (body && lines-- <= 0) {
+                break;
+            }
+            final int eol = message.forEachByte(index, end - index, ByteProcessor.FIND_LF);
+            index = eol < 0 ? end : eol + 1;
+            if (!body) {
+                // The empty line separates the headers from the body
+                final int length = index - lineStart;
+                body = length == 1 || length == 2 && message.getByte(lineStart) == '\r';
+                lineStart = index;
+            }
+        }
+        return index - message.readerIndex();
+    }
+
+    /**
+     * Builds a multi-line POP3 response. Lines of the content that start with a dot are
+     * dot-stuffed with slices of the content, so no bytes are copied.
+     *
+     * @param allocator buffer allocator
+     * @param status    status line without CRLF
+     * @param content   response content, released when the response is released
+     * @return the response
+     */
+    static ByteBuf multiline(ByteBufAllocator allocator, String status, ByteBuf content) {
+        final CompositeByteBuf response = allocator.compositeBuffer(Integer.MAX_VALUE);
+        final ByteBuf statusLine = allocator.buffer(status.length() + 2);
+        ByteBufUtil.writeAscii(statusLine, status);
+        statusLine.writeBytes(CRLF, CRLF.readerIndex(), CRLF.readableBytes());
+        response.addComponent(true, statusLine);
+
+        final int end = content.writerIndex();
+        int start = content.readerIndex();
+        int index = start;
+        while (index < end) {
+            if (content.getByte(index) == '.') {
+                // Add the line with the leading dot once more
+                if (index > start) {
+                    response.addComponent(true, content.retainedSlice(start, index - start));
+                }
+                response.addComponent(true, DOT.duplicate());
+                start = index;
+            }
+            final int eol = content.forEachByte(index, end - index, ByteProcessor.FIND_LF);
+            index = eol < 0 ? end : eol + 1;
+        }
+        if (start < end) {
+            response.addComponent(true, content.retainedSlice(start, end - start));
+        }
+        if (end > content.readerIndex() && content.getByte(end - 1) != '\n') {
+            response.addComponent(true, CRLF.duplicate());
+        }
+        response.addComponent(true, TERMINATOR.duplicate());
+        content.release();
+        return response;
+    }
+}
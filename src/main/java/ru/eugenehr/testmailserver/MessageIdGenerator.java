@@ -0,0 +1,121 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free generator of unique message IDs.
+ *
+ * <p>An ID is the 16 hex digits of the time in milliseconds shifted left by {@value #SEQUENCE_BITS}
+ * bits plus a sequence number, a dash and the 4 hex digits of the random node number of the
+ * process, e.g. {@code 0187a3c5e1d00003-5f2e}. The IDs have a fixed width, so they are sorted by
+ * the generation time as strings. Within the process the IDs are strictly increasing: the IDs
+ * generated in the same millisecond get the next sequence numbers, and if the clock goes back or
+ * the sequence overflows the IDs keep counting from the last one. The node number separates the
+ * IDs of the processes sharing the mailboxes.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public final class MessageIdGenerator {
+
+    /**
+     * Number of the sequence bits, up to a million IDs per millisecond.
+     */
+    private static final int SEQUENCE_BITS = 20;
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private final AtomicLong last = new AtomicLong();
+    private final int node;
+
+    /**
+     * Creates a generator with a random node number.
+     */
+    public MessageIdGenerator() {
+        this(new SecureRandom().nextInt() & 0xffff);
+    }
+
+    /**
+     * Creates a generator.
+     *
+     * @param node node number, the lower 16 bits are used
+     */
+    public MessageIdGenerator(int node) {
+        this.node = node & 0xffff;
+    }
+
+    /**
+     * Generates the next message ID.
+     *
+     * @return the message ID
+     */
+    public String nextId() {
+        return format(nextValue(), node);
+    }
+
+    /**
+     * Generates the next time and sequence part of the message ID.
+     *
+     * @return the value greater than all the previous ones
+     */
+    long nextValue() {
+        final long now = System.currentTimeMillis() << SEQUENCE_BITS;
+        while (true) {
+            final long prev = last.get();
+            final long next = now > prev ? now : prev + 1;
+            if (last.compareAndSet(prev, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Gets the generation time of a message ID.
+     *
+     * @param id message ID
+     * @return the time in milliseconds or -1 if the ID has not been generated by this class
+     */
+    public static long timestamp(String id) {
+        if (id.length() != 21 || id.charAt(16) != '-') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < 16; i++) {
+            final int digit = Character.digit(id.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value << 4 | digit;
+        }
+        return value >>> SEQUENCE_BITS;
+    }
+
+    static String format(long value, int node) {
+        final char[] chars = new char[21];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = DIGITS[(int) value & 0xf];
+            value >>>= 4;
+        }
+        chars[16] = '-';
+        for (int i = 20; i > 16; i--) {
+            chars[i] = DIGITS[node & 0xf];
+            node >>>= 4;
+        }
+        return new String(chars);
+    }
+}
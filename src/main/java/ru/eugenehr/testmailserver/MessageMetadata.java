@@ -0,0 +1,231 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Message metadata computed once when the message is delivered: the size, the header/body
+ * boundary, the number of body lines and the key headers.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public final class MessageMetadata {
+
+    private final long size;
+    private final long headerLength;
+    private final long lines;
+    private final String from;
+    private final String to;
+    private final String subject;
+    private final String date;
+    private final String messageId;
+
+    /**
+     * Creates message metadata.
+     *
+     * @param size         message size in bytes
+     * @param headerLength length in bytes of the headers and the empty line after them
+     * @param lines        number of body lines
+     * @param from         {@code From} header or {@code null}
+     * @param to           {@code To} header or {@code null}
+     * @param subject      {@code Subject} header or {@code null}
+     * @param date         {@code Date} header or {@code null}
+     * @param messageId    {@code Message-ID} header or {@code null}
+     */
+    public MessageMetadata(long size, long headerLength, long lines, String from, String to, String subject,
+        String date, String messageId) {
+        this.size = size;
+        this.headerLength = headerLength;
+        this.lines = lines;
+        this.from = from;
+        this.to = to;
+        this.subject = subject;
+        this.date = date;
+        this.messageId = messageId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getHeaderLength() {
+        return headerLength;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Computes the metadata of a stored message.
+     *
+     * @param in message content
+     * @return the metadata
+     * @throws IOException if the message could not be read
+     */
+    public static MessageMetadata parse(InputStream in) throws IOException {
+        final Parser parser = new Parser();
+        final byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            parser.update(Unpooled.wrappedBuffer(chunk, 0, read));
+        }
+        return parser.finish();
+    }
+
+    /**
+     * Incremental parser of the message content.
+     */
+    static final class Parser {
+
+        /**
+         * Maximum length of the collected headers, the key headers are usually at the top.
+         */
+        private static final int MAX_HEADERS_LENGTH = 64 * 1024;
+        /**
+         * Maximum length of a kept header value.
+         */
+        private static final int MAX_VALUE_LENGTH = 256;
+
+        private final ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        private long size;
+        private long headerLength = -1;
+        private long lines;
+        private boolean truncated;
+        private int lineLength;
+        private byte lineStart;
+        private byte last;
+
+        /**
+         * Scans the next part of the message.
+         *
+         * @param data message data, the reader index is not changed
+         */
+        void update(ByteBuf data) {
+            final int end = data.writerIndex();
+            int index = data.readerIndex();
+            if (index == end) {
+                return;
+            }
+            while (index < end) {
+                final int eol = data.forEachByte(index, end - index, ByteProcessor.FIND_LF);
+                final int next = eol < 0 ? end : eol + 1;
+                if (headerLength < 0) {
+                    if (lineLength == 0) {
+                        lineStart = data.getByte(index);
+                    }
+                    lineLength += next - index;
+                    if (eol >= 0 && (lineLength == 1 || lineLength == 2 && lineStart == '\r')) {
+                        // The empty line separates the headers from the body
+                        headerLength = size + next - data.readerIndex();
+                    } else if (headers.size() + next - index <= MAX_HEADERS_LENGTH && !truncated) {
+                        final byte[] bytes = new byte[next - index];
+                        data.getBytes(index, bytes);
+                        headers.write(bytes, 0, bytes.length);
+                    } else {
+                        truncated = true;
+                    }
+                    if (eol >= 0) {
+                        lineLength = 0;
+                    }
+                } else if (eol >= 0) {
+                    lines++;
+                }
+                index = next;
+            }
+            last = data.getByte(end - 1);
+            size += end - data.readerIndex();
+        }
+
+        /**
+         * Completes the message.
+         *
+         * @return the metadata
+         */
+        MessageMetadata finish() {
+            long bodyLines = lines;
+            if (headerLength < 0) {
+                // No body
+                headerLength = size;
+            } else if (size > headerLength && last != '\n') {
+                // The last line with no line break
+                bodyLines++;
+            }
+            String from = null;
+            String to = null;
+            String subject = null;
+            String date = null;
+            String messageId = null;
+            // Unfold the header lines continued with whitespace
+            final String text = new String(headers.toByteArray(), CharsetUtil.UTF_8)
+                .replaceAll("\\r?\\n[ \\t]+", " ");
+            for (String line : text.split("\\r?\\n")) {
+                final int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                final String name = line.substring(0, colon).trim();
+                final String value = value(line.substring(colon + 1));
+                if (from == null && "From".equalsIgnoreCase(name)) {
+                    from = value;
+                } else if (to == null && "To".equalsIgnoreCase(name)) {
+                    to = value;
+                } else if (subject == null && "Subject".equalsIgnoreCase(name)) {
+                    subject = value;
+                } else if (date == null && "Date".equalsIgnoreCase(name)) {
+                    date = value;
+                } else if (messageId == null && "Message-ID".equalsIgnoreCase(name)) {
+                    messageId = value;
+                }
+            }
+            return new MessageMetadata(size, headerLength, bodyLines, from, to, subject, date, messageId);
+        }
+
+        private static String value(String value) {
+            value = value.trim();
+            return value.length() > MAX_VALUE_LENGTH ? value.substring(0, MAX_VALUE_LENGTH) : value;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Received message content.
+ *
+ * <p>The content is accumulated in a pooled direct buffer while it is smaller than the threshold
+ * and is spilled to a temporary file when the threshold is exceeded. Small messages are written
+ * once straight to the mailbox files with no temporary file involved. The {@link MessageMetadata}
+ * is computed on the fly while the content is appended.
+ *
+ * <p>With the compression enabled the content is compressed to the GZIP format while it is appended,
+ * so only the compressed content is buffered, spilled and stored. The stores decompress it when the
+ * message is read.
+ *
+ * <p>The spool is not thread-safe, the session tasks use it one at a time.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class MessageSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageSpool.class);
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int COMPRESSION_BUFFER_SIZE = 8192;
+    /**
+     * Maximum size of the temporary file allocated at once for the expected message size. The size
+     * is declared by the client, so larger messages grow the file with the writes.
+     */
+    private static final long MAX_PREALLOCATION = 64 * 1024 * 1024;
+
+    private final ByteBufAllocator allocator;
+    private final int threshold;
+    private final long sizeHint;
+    private final boolean compress;
+    private ByteBuf buffer;
+    private File file;
+    private FileChannel channel;
+    private long length;
+    private long received;
+    private CompressingStream compressor;
+    private byte[] chunk;
+    private MessageMetadata.Parser parser = new MessageMetadata.Parser();
+    private MessageMetadata metadata;
+
+    /**
+     * Creates a message spool.
+     *
+     * @param allocator buffer allocator
+     * @param threshold maximum size of message kept in memory
+     * @param sizeHint  expected message size or 0 if unknown
+     */
+    public MessageSpool(ByteBufAllocator allocator, int threshold, long sizeHint) {
+        this(allocator, threshold, sizeHint, false);
+    }
+
+    /**
+     * Creates a message spool.
+     *
+     * @param allocator buffer allocator
+     * @param threshold maximum size of message kept in memory
+     * @param sizeHint  expected message size or 0 if unknown
+     * @param compress  {@code true} to compress the message content
+     */
+    public MessageSpool(ByteBufAllocator allocator, int threshold, long sizeHint, boolean compress) {
+        this.allocator = allocator;
+        this.threshold = threshold;
+        this.sizeHint = sizeHint;
+        this.compress = compress;
+    }
+
+    /**
+     * Appends data to the message.
+     *
+     * @param data data to append
+     * @throws IOException if the data could not be written to the temporary file
+     */
+    public void write(ByteBuf data) throws IOException {
+        received += data.readableBytes();
+        parser.update(data);
+        if (!compress) {
+            append(data);
+            return;
+        }
+        if (compressor == null) {
+            chunk = new byte[COMPRESSION_BUFFER_SIZE];
+            compressor = new CompressingStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    append(Unpooled.wrappedBuffer(b, off, len));
+                }
+            });
+        }
+        while (data.isReadable()) {
+            final int size = Math.min(data.readableBytes(), chunk.length);
+            data.readBytes(chunk, 0, size);
+            compressor.write(chunk, 0, size);
+        }
+    }
+
+    /**
+     * Appends data to the stored content.
+     */
+    private void append(ByteBuf data) throws IOException {
+        final int size = data.readableBytes();
+        if (channel == null && length + size <= threshold && sizeHint <= threshold) {
+            if (buffer == null) {
+                final int capacity = (int) Math.max(Math.min(sizeHint, threshold),
+                    Math.min(INITIAL_CAPACITY, threshold));
+                buffer = allocator.directBuffer(Math.max(capacity, size), threshold);
+            }
+            buffer.writeBytes(data);
+        } else {
+            if (channel == null) {
+                spill();
+            }
+            while (data.isReadable()) {
+                data.readBytes(channel, data.readableBytes());
+            }
+        }
+        length += size;
+    }
+
+    /**
+     * Completes the message.
+     *
+     * @return the message length in bytes before the compression
+     * @throws IOException if the temporary file could not be closed
+     */
+    public long close() throws IOException {
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+            chunk = null;
+        }
+        if (channel != null) {
+            // Cut off the unused preallocated space
+            channel.truncate(channel.position());
+            channel.close();
+            channel = null;
+        }
+        if (parser != null) {
+            metadata = parser.finish();
+            parser = null;
+        }
+        return received;
+    }
+
+    /**
+     * Gets the length of the stored content.
+     *
+     * @return the length in bytes, of the compressed content if the compression is enabled
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Gets the metadata of the completed message.
+     *
+     * @return the metadata or {@code null} if the message is not completed
+     */
+    public MessageMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Tests if the message has been spilled to a temporary file.
+     *
+     * @return {@code true} if the message is stored in a temporary file
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Writes the message to the file.
+     *
+     * @param dest destination file
+     * @throws IOException if the message could not be written
+     */
+    public void writeTo(File dest) throws IOException {
+        if (file != null) {
+            Files.copy(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        try (FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTo(out, 0);
+        }
+    }
+
+    /**
+     * Writes the message to the file channel at the given position, the channel position is not
+     * changed.
+     *
+     * @param out      destination channel
+     * @param position file position to write the message at
+     * @throws IOException if the message could not be written
+     */
+    public void writeTo(FileChannel out, long position) throws IOException {
+        if (file != null) {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long written = 0;
+                while (written < length) {
+                    final long count = out.transferFrom(in, position + written, length - written);
+                    if (count <= 0) {
+                        throw new EOFException("Temporary file '" + file.getAbsolutePath() + "' is truncated");
+                    }
+                    written += count;
+                }
+            }
+        } else if (buffer != null) {
+            int index = buffer.readerIndex();
+            while (index < buffer.writerIndex()) {
+                index += buffer.getBytes(index, out, position + index - buffer.readerIndex(),
+                    buffer.writerIndex() - index);
+            }
+        }
+    }
+
+    /**
+     * Copies the message to the buffer.
+     *
+     * @param dest destination buffer with at least {@link #length()} bytes remaining
+     * @throws IOException if the temporary file could not be read
+     */
+    public void copyTo(ByteBuffer dest) throws IOException {
+        final ByteBuffer slice = dest.duplicate();
+        slice.limit(slice.position() + (int) length);
+        if (file != null) {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long position = 0;
+                while (slice.hasRemaining()) {
+                    final int read = in.read(slice, position);
+                    if (read < 0) {
+                        break;
+                    }
+                    position += read;
+                }
+            }
+        } else if (buffer != null) {
+            buffer.getBytes(buffer.readerIndex(), slice);
+        }
+        dest.position(slice.position());
+    }
+
+    /**
+     * Releases the memory buffer and removes the temporary file.
+     */
+    public void release() {
+        if (compressor != null) {
+            compressor.end();
+            compressor = null;
+        }
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.error("Could not close file '{}': {}", file.getAbsolutePath(), ex.getMessage());
+            }
+            channel = null;
+        }
+        if (file != null && file.exists()) {
+            if (file.delete()) {
+                logger.debug("File '{}' deleted", file.getAbsolutePath());
+            } else {
+                logger.error("Could not delete file '{}'", file.getAbsolutePath());
+            }
+        }
+        file = null;
+    }
+
+    /**
+     * Moves the message from the memory to a temporary file.
+     */
+    private void spill() throws IOException {
+        file = File.createTempFile("mail", ".msg");
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        if (sizeHint > 0 && sizeHint <= MAX_PREALLOCATION) {
+            // Extend the file at once instead of growing it with every write
+            channel.write(ByteBuffer.wrap(new byte[1]), sizeHint - 1);
+        }
+        if (buffer != null) {
+            while (buffer.isReadable()) {
+                buffer.readBytes(channel, buffer.readableBytes());
+            }
+            buffer.release();
+            buffer = null;
+        }
+        logger.debug("Message spilled to '{}'", file.getAbsolutePath());
+    }
+
+    /**
+     * GZIP stream with the fastest compression, most of the test messages are text compressed well
+     * enough at this level.
+     */
+    private static final class CompressingStream extends GZIPOutputStream {
+
+        private CompressingStream(OutputStream out) throws IOException {
+            super(out, COMPRESSION_BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+
+        /**
+         * Frees the native resources of the uncompleted stream.
+         */
+        private void end() {
+            def.end();
+        }
+    }
+}
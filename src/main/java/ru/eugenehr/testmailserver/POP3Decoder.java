@@ -0,0 +1,47 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+
+/**
+ * POP3 frame decoder. Splits the inbound stream into CR LF or LF terminated lines without line
+ * delimiters.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class POP3Decoder extends LineBasedFrameDecoder {
+
+    /**
+     * Constructor.
+     *
+     * @param maxLineLength maximum length of a command line
+     */
+    public POP3Decoder(int maxLineLength) {
+        super(maxLineLength, true, true);
+    }
+
+    /**
+     * Discards the received bytes which are not decoded yet, e.g. the plain text input pipelined
+     * after {@code STLS}. Must be called from the event loop.
+     */
+    public void discardInput() {
+        final ByteBuf in = internalBuffer();
+        in.skipBytes(in.readableBytes());
+    }
+}
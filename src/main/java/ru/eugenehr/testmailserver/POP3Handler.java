@@ -16,27 +16,26 @@
 
 package ru.eugenehr.testmailserver;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.stream.Collectors;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslContext;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
-import io.netty.util.CharsetUtil;
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ru.eugenehr.testmailserver.event.MailboxEvent;
 import ru.eugenehr.testmailserver.event.POP3SessionEvent;
 import ru.eugenehr.testmailserver.event.POP3SessionLogEvent;
 import ru.eugenehr.testmailserver.event.SessionEvent;
@@ -52,38 +51,69 @@ import ru.eugenehr.testmailserver.ui.UIEventBus;
 public class POP3Handler extends ChannelInboundHandlerAdapter {
 
     private static final Logger logger = LoggerFactory.getLogger(POP3Handler.class);
+    private static final AttributeKey<State> STATE = AttributeKey.valueOf(POP3Handler.class, "state");
+    private static final Command.Verbs<Verb> VERBS = new Command.Verbs<>(Verb.class);
+    private static final int MAX_LOGGED_RESPONSE = 1024;
+    /**
+     * Body bytes read at once after the message headers by the TOP command.
+     */
+    private static final int TOP_READ_AHEAD = 4096;
+    private static final ByteBuf GREETING = Responses.constant("+OK Test Mail Server\r\n");
+    private static final ByteBuf OK = Responses.constant("+OK\r\n");
+    private static final ByteBuf TOO_MANY_SESSIONS = Responses.constant(
+        "-ERR [SYS/TEMP] Too many connections, try again later\r\n");
+    private static final ByteBuf CAPABILITIES = Responses.constant("+OK\r\nUIDL\r\n.\r\n");
+    private static final ByteBuf STLS_CAPABILITIES = Responses.constant("+OK\r\nUIDL\r\nSTLS\r\n.\r\n");
+    private static final ByteBuf BEGIN_TLS = Responses.constant("+OK Begin TLS negotiation\r\n");
+    private static final ByteBuf NOT_IMPLEMENTED = Responses.constant("-ERR Not implemented\r\n");
+    private static final ByteBuf READ_ERROR = Responses.constant("-ERR Could not read message\r\n");
+    private static final ByteBuf REMOVE_ERROR = Responses.constant("-ERR Could not remove messages\r\n");
+    private static final ByteBuf NO_USER = Responses.constant("-ERR No user given\r\n");
+    private static final ByteBuf INVALID_NUMBER = Responses.constant("-ERR Invalid message number\r\n");
+    private static final ByteBuf INVALID_LINES = Responses.constant("-ERR Invalid lines count format\r\n");
+    private static final ByteBuf MESSAGE_DELETED = Responses.constant("-ERR Message deleted\r\n");
+    private static final ByteBuf TLS_NOT_AVAILABLE = Responses.constant("-ERR TLS not available\r\n");
+    private static final ByteBuf STLS_NOT_PERMITTED = Responses.constant("-ERR Command not permitted\r\n");
 
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         final Channel channel = ctx.channel();
+        final AdmissionControl.Limit limit = MailServer.getInstance().getAdmissionControl()
+            .admit(channel.remoteAddress());
+        if (limit != null) {
+            logger.debug("Client {} rejected, {} limit exceeded", channel.remoteAddress(), limit);
+            AdmissionControl.reject(channel, TOO_MANY_SESSIONS.duplicate());
+            return;
+        }
         logger.info("Client connected: {}", channel.remoteAddress());
 
-        final Attribute<State> state = channel.attr(AttributeKey.valueOf("state"));
-        state.set(new State());
-
-        // Send greetings
-        final String message = "+OK Test Mail Server\r\n";
-        logger.debug(">>: {}", message.trim());
-        channel.writeAndFlush(message);
+        final State state = new State(channel.id().toString(),
+            new SessionExecutor(ctx, MailServer.getInstance().getDeliveryExecutor()));
+        channel.attr(STATE).set(state);
 
         // Notify UI
-        UIEventBus.post(new POP3SessionEvent(channel.id().toString(), SessionEvent.Type.CREATED));
-        UIEventBus.post(new POP3SessionLogEvent(channel.id().toString(), Direction.SERVER, message));
+        UIEventBus.post(new POP3SessionEvent(state.id, SessionEvent.Type.CREATED));
+
+        // Send greetings
+        reply(channel, state.id, GREETING.duplicate());
+        channel.flush();
     }
 
     @Override
     public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
+        final State state = ctx.channel().attr(STATE).get();
+        if (state == null) {
+            // Rejected by the admission control
+            return;
+        }
         logger.info("Client disconnected: {}", ctx.channel().remoteAddress());
+        MailServer.getInstance().getAdmissionControl().release(ctx.channel().remoteAddress());
 
-        final Channel channel = ctx.channel();
-        final String channelId = channel.id().toString();
-
-        // Remove temporary files
-        final Attribute<State> attr = channel.attr(AttributeKey.valueOf("state"));
-        final State state = attr.get();
+        // Release deferred commands
+        state.session.close();
 
         // Notify UI
-        UIEventBus.post(new POP3SessionEvent(channelId, SessionEvent.Type.CLOSED));
+        UIEventBus.post(new POP3SessionEvent(state.id, SessionEvent.Type.CLOSED));
     }
 
     @Override
@@ -106,229 +136,409 @@ public class POP3Handler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        final Channel channel = ctx.channel();
-        final String channelId = channel.id().toString();
-        logger.debug("<<: {}", msg);
+        final State state = ctx.channel().attr(STATE).get();
+        if (state.session.defer(msg)) {
+            return;
+        }
 
-        final String message = msg.toString();
-        UIEventBus.post(new POP3SessionLogEvent(channelId, Direction.CLIENT, message));
+        final ByteBuf line = (ByteBuf) msg;
+        try {
+            command(ctx, state, state.command.reset(line));
+        } finally {
+            line.release();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // Flush the responses to all commands of the batch at once
+        ctx.channel().flush();
+    }
 
-        final Attribute<State> attr = channel.attr(AttributeKey.valueOf("state"));
-        final State state = attr.get();
+    /**
+     * Handles a POP3 command.
+     *
+     * @param ctx     channel handler context
+     * @param state   session state
+     * @param command command line
+     */
+    private void command(ChannelHandlerContext ctx, State state, Command command) {
+        final Channel channel = ctx.channel();
+        final String channelId = state.id;
+        if (logger.isDebugEnabled()) {
+            logger.debug("<<: {}", command);
+        }
+        if (UIEventBus.isEnabled()) {
+            UIEventBus.post(new POP3SessionLogEvent(channelId, Direction.CLIENT, command.toString()));
+        }
 
         final Mailboxes mailboxes = MailServer.getInstance().getMailboxes();
+        final Verb verb = command.verb(VERBS);
+        if (verb == null) {
+            reply(channel, channelId, NOT_IMPLEMENTED.duplicate());
+            return;
+        }
 
-        String response;
-        boolean closeConnection = false;
-        if (message.matches("^(USER|APOP)\\s.+")) {
-            state.mailbox = message.substring(5).split("\\s")[0];
-            state.messages = new ArrayList<>(mailboxes.getMessages(state.mailbox));
-            state.deleted = new ArrayList<>();
-            response = "+OK\r\n";
-        } else if (message.startsWith("PASS ")) {
-            if (state.mailbox == null) {
-                response = "-ERR No user given\r\n";
-            } else {
-                response = "+OK\r\n";
-            }
-        } else if (message.equals("CAPA")) {
-            response = "+OK\r\nUIDL\r\n.\r\n";
-        } else if (message.equals("STAT")) {
-            if (state.mailbox == null) {
-                response = "-ERR No user given\r\n";
-            } else {
-                response = "+OK "
-                    + state.messages.size() + " "
-                    + state.messages.stream()
-                    .map(file -> mailboxes.getMessage(state.mailbox, file))
-                    .filter(File::exists).mapToLong(File::length).sum() + "\r\n";
-            }
-        } else if (message.startsWith("LIST")) {
-            if (state.mailbox == null) {
-                response = "-ERR No user given\r\n";
-            } else {
-                response = "+OK\r\n";
-                if (message.equals("LIST")) {
-                    for (int i = 0; i < state.messages.size(); i++) {
-                        final String mail = state.messages.get(i);
-                        if (!state.deleted.contains(mail)) {
-                            response += (i + 1) + " "
-                                + mailboxes.getMessage(state.mailbox, mail).length() + "\r\n";
-                        }
-                    }
-                    response += ".\r\n";
+        final ByteBuf response;
+        switch (verb) {
+            case USER:
+            case APOP:
+                final String mailbox = command.argument();
+                if (mailbox.isEmpty()) {
+                    response = NO_USER.duplicate();
                 } else {
-                    String index = message.substring(5);
-                    if (index.matches("\\d+")) {
-                        int num = Integer.valueOf(index);
-                        if (num > state.messages.size()) {
-                            response = "-ERR Invalid message number\r\n";
-                        } else {
-                            final String mail = state.messages.get(num - 1);
-                            if (!state.deleted.contains(mail)) {
-                                response += num + " " + mailboxes.getMessage(state.mailbox,
-                                    state.messages.get(num - 1)).length() + "\r\n";
-                            }
-                            response += ".\r\n";
-                        }
-                    } else {
-                        response = "-ERR Invalid message number\r\n";
-                    }
+                    state.mailbox = mailbox;
+                    state.messages = new ArrayList<>(mailboxes.getMessages(state.mailbox));
+                    state.deleted = new ArrayList<>();
+                    response = OK.duplicate();
                 }
-            }
-        } else if (message.equals("UIDL")) {
-            if (state.mailbox == null) {
-                response = "-ERR no user given\r\n";
-            } else {
-                response = "+OK\r\n";
-                for (int i = 0; i < state.messages.size(); i++) {
-                    response += (i + 1) + " " + state.messages.get(i) + "\r\n";
+                break;
+            case PASS:
+                response = (state.mailbox == null ? NO_USER : OK).duplicate();
+                break;
+            case CAPA:
+                final boolean tlsAvailable = MailServer.getInstance().getSslContext() != null
+                    && !Tls.isActive(ctx.pipeline());
+                response = (tlsAvailable ? STLS_CAPABILITIES : CAPABILITIES).duplicate();
+                break;
+            case STLS:
+                response = stls(ctx, state);
+                break;
+            case STAT:
+                if (state.mailbox == null) {
+                    response = NO_USER.duplicate();
+                } else {
+                    // The sizes of the messages added by other programs are read off the event loop
+                    state.session.submit(() -> stat(state, mailboxes, channel.alloc()), (result, error) ->
+                        reply(channel, channelId, error == null ? result : READ_ERROR.duplicate()));
+                    return;
                 }
-                response += ".\r\n";
-            }
-        } else if (message.startsWith("RETR ")) {
-            if (state.mailbox == null) {
-                response = "-ERR no user given\r\n";
-            } else {
-                String index = message.substring(5);
-                if (index.matches("\\d+")) {
-                    int num = Integer.valueOf(index);
-                    if (num > state.messages.size()) {
-                        response = "-ERR Invalid message number\r\n";
+                break;
+            case LIST:
+                if (state.mailbox == null) {
+                    response = NO_USER.duplicate();
+                } else {
+                    final int num = command.isEnd() ? 0 : messageNumber(state, command);
+                    if (num < 0) {
+                        response = INVALID_NUMBER.duplicate();
                     } else {
-                        final String mail = state.messages.get(num - 1);
-                        if (!state.deleted.contains(mail)) {
-                            final File file = mailboxes.getMessage(state.mailbox, state.messages.get(num - 1));
-                            if (file.exists() && file.canRead()) {
-                                response = "+OK " + file.length() + "\r\n"
-                                    + FileUtils.readLines(file, CharsetUtil.US_ASCII)
-                                    .stream().collect(Collectors.joining("\r\n"))
-                                    + "\r\n.\r\n";
-                            } else {
-                                response = "-ERR Message deleted\r\n";
-                            }
-                        } else {
-                            response = "-ERR Message deleted\r\n";
-                        }
+                        state.session.submit(() -> list(state, mailboxes, num, channel.alloc()), (result, error) ->
+                            reply(channel, channelId, error == null ? result : READ_ERROR.duplicate()));
+                        return;
                     }
+                }
+                break;
+            case UIDL:
+                if (state.mailbox == null) {
+                    response = NO_USER.duplicate();
                 } else {
-                    response = "-ERR Invalid message number\r\n";
+                    response = channel.alloc().buffer();
+                    ByteBufUtil.writeAscii(response, "+OK\r\n");
+                    for (int i = 0; i < state.messages.size(); i++) {
+                        Responses.writeNumber(response, i + 1).writeByte(' ');
+                        ByteBufUtil.writeAscii(response, state.messages.get(i));
+                        ByteBufUtil.writeAscii(response, "\r\n");
+                    }
+                    ByteBufUtil.writeAscii(response, ".\r\n");
                 }
-            }
-        } else if (message.startsWith("TOP ")) {
-            if (state.mailbox == null) {
-                response = "-ERR no user given\r\n";
-            } else {
-                String[] parts = message.substring(4).split("\\s", 2);
-                String index = parts[0];
-                if (index.matches("\\d+")) {
-                    int num = Integer.valueOf(index);
-                    if (num > state.messages.size()) {
-                        response = "-ERR Invalid message number\r\n";
+                break;
+            case RETR:
+                if (state.mailbox == null) {
+                    response = NO_USER.duplicate();
+                } else {
+                    final int num = messageNumber(state, command);
+                    if (num < 0) {
+                        response = INVALID_NUMBER.duplicate();
                     } else {
-                        final String mail = state.messages.get(num - 1);
-                        if (!state.deleted.contains(mail)) {
-                            final File file = mailboxes.getMessage(state.mailbox, state.messages.get(num - 1));
-                            if (file.exists() && file.canRead()) {
-                                index = parts[1];
-                                if (index.matches("\\d+")) {
-                                    num = Integer.valueOf(index);
-                                    response = "+OK\r\n";
-                                    // Read message headers
-                                    final ListIterator<String> it = FileUtils
-                                        .readLines(file, CharsetUtil.US_ASCII).listIterator();
-                                    while (it.hasNext()) {
-                                        final String line = it.next();
-                                        response += line + "\r\n";
-                                        if (line.isEmpty()) {
-                                            break;
-                                        }
-                                    }
-                                    // Read message body
-                                    for (int i = 0; i < num; i++) {
-                                        if (it.hasNext()) {
-                                            final String line = it.next();
-                                            response += line + "\r\n";
-                                        } else {
-                                            break;
-                                        }
-                                    }
-                                    response += ".\r\n";
-                                } else {
-                                    response = "-ERR Invalid lines count format\r\n";
-                                }
-                            } else {
-                                response = "-ERR Message deleted\r\n";
-                            }
-                        } else {
-                            response = "-ERR Message deleted\r\n";
-                        }
+                        // Read the message off the event loop
+                        state.session.submit(() -> retr(state, mailboxes, num, channel.alloc()), (result, error) ->
+                            reply(channel, channelId, error == null ? result : READ_ERROR.duplicate()));
+                        return;
                     }
+                }
+                break;
+            case TOP:
+                if (state.mailbox == null) {
+                    response = NO_USER.duplicate();
                 } else {
-                    response = "-ERR Invalid message number\r\n";
+                    final int num = messageNumber(state, command);
+                    final long lines = command.number();
+                    if (num < 0) {
+                        response = INVALID_NUMBER.duplicate();
+                    } else if (lines < 0 || lines > Integer.MAX_VALUE) {
+                        response = INVALID_LINES.duplicate();
+                    } else {
+                        state.session.submit(() -> top(state, mailboxes, num, (int) lines, channel.alloc()),
+                            (result, error) ->
+                                reply(channel, channelId, error == null ? result : READ_ERROR.duplicate()));
+                        return;
+                    }
                 }
-            }
-        } else if (message.startsWith("DELE ")) {
-            if (state.mailbox == null) {
-                response = "-ERR no user given\r\n";
-            } else {
-                String index = message.substring(5);
-                if (index.matches("\\d+")) {
-                    int num = Integer.valueOf(index);
-                    if (num > state.messages.size()) {
-                        response = "-ERR Invalid message number\r\n";
+                break;
+            case DELE:
+                if (state.mailbox == null) {
+                    response = NO_USER.duplicate();
+                } else {
+                    final int num = messageNumber(state, command);
+                    if (num < 0) {
+                        response = INVALID_NUMBER.duplicate();
                     } else {
                         final String mail = state.messages.get(num - 1);
                         if (!state.deleted.contains(mail)) {
                             state.deleted.add(mail);
-                            response = "+OK\r\n";
+                            response = OK.duplicate();
                         } else {
-                            response = "-ERR Message deleted\r\n";
+                            response = MESSAGE_DELETED.duplicate();
                         }
                     }
+                }
+                break;
+            case RSET:
+                if (state.mailbox == null) {
+                    response = NO_USER.duplicate();
                 } else {
-                    response = "-ERR Invalid message number\r\n";
+                    state.deleted.clear();
+                    response = OK.duplicate();
                 }
-            }
-        } else if (message.equals("RSET")) {
-            if (state.mailbox == null) {
-                response = "-ERR no user given\r\n";
+                break;
+            case NOOP:
+                response = OK.duplicate();
+                break;
+            case QUIT:
+                // Remove deleted files off the event loop
+                state.session.submit(() -> quit(state, mailboxes), (result, error) -> {
+                    reply(channel, channelId, error == null ? result : REMOVE_ERROR.duplicate());
+                    channel.flush();
+                    ctx.close();
+                });
+                return;
+            default:
+                response = NOT_IMPLEMENTED.duplicate();
+                break;
+        }
+        reply(channel, channelId, response);
+    }
+
+    /**
+     * Handles the STLS command.
+     *
+     * @param ctx   channel handler context
+     * @param state session state
+     * @return the response, the last one sent in plain text
+     */
+    private static ByteBuf stls(ChannelHandlerContext ctx, State state) {
+        final SslContext sslContext = MailServer.getInstance().getSslContext();
+        if (sslContext == null) {
+            return TLS_NOT_AVAILABLE.duplicate();
+        }
+        // Allowed in the AUTHORIZATION state only (RFC 2595)
+        if (Tls.isActive(ctx.pipeline()) || state.mailbox != null) {
+            return STLS_NOT_PERMITTED.duplicate();
+        }
+        // Drop the commands pipelined after STLS
+        state.session.close();
+        ctx.pipeline().get(POP3Decoder.class).discardInput();
+        Tls.start(ctx.channel(), sslContext);
+        return BEGIN_TLS.duplicate();
+    }
+
+    /**
+     * Writes a scan listing line {@code <number> <size>}.
+     *
+     * @param buf  buffer to write to
+     * @param num  message number
+     * @param size message size
+     */
+    private static void listing(ByteBuf buf, int num, long size) {
+        Responses.writeNumber(buf, num).writeByte(' ');
+        ByteBufUtil.writeAscii(Responses.writeNumber(buf, size), "\r\n");
+    }
+
+    /**
+     * Reads the message number argument.
+     *
+     * @param state   session state
+     * @param command command line
+     * @return the message number or -1 if the number is not valid
+     */
+    private static int messageNumber(State state, Command command) {
+        final long num = command.number();
+        return num < 1 || num > state.messages.size() ? -1 : (int) num;
+    }
+
+    /**
+     * Sends a response to the client. The response is flushed when the read batch is completed.
+     *
+     * @param channel   client channel
+     * @param channelId client channel ID
+     * @param response  response to send
+     */
+    private void reply(Channel channel, String channelId, ByteBuf response) {
+        if (logger.isDebugEnabled()) {
+            if (response.readableBytes() > MAX_LOGGED_RESPONSE) {
+                logger.debug(">>: {} bytes", response.readableBytes());
             } else {
-                state.deleted.clear();
-                response = "+OK\r\n";
+                logger.debug(">>: {}", Responses.toString(response).trim());
             }
-        } else if (message.equals("NOOP")) {
-            response = "+OK\r\n";
-        } else if (message.equals("QUIT")) {
-            response = "+OK\r\n";
-            // Remove deleted files
-            state.deleted.stream()
-                .map(mail -> mailboxes.getMessage(state.mailbox, mail))
-                .filter(File::exists)
-                .forEach(file -> {
-                    if (file.delete()) {
-                        UIEventBus.post(new MailboxEvent(state.mailbox, file.getName(), MailboxEvent.Type.DELETED));
-                    }
-                });
-            closeConnection = true;
-        } else {
-            response = "-ERR Not implemented\r\n";
         }
-        logger.debug(">>: {}", response.trim());
-        channel.writeAndFlush(response);
-        UIEventBus.post(new POP3SessionLogEvent(channelId, Direction.SERVER, response));
+        if (UIEventBus.isEnabled()) {
+            UIEventBus.post(new POP3SessionLogEvent(channelId, Direction.SERVER, Responses.toString(response)));
+        }
+        channel.write(response);
+    }
+
+    /**
+     * Handles the STAT command.
+     *
+     * @param state     session state
+     * @param mailboxes mailboxes manager
+     * @param allocator buffer allocator
+     * @return the response
+     */
+    private static ByteBuf stat(State state, Mailboxes mailboxes, ByteBufAllocator allocator) {
+        final long size = state.messages.stream()
+            .mapToLong(mail -> mailboxes.getMessageSize(state.mailbox, mail)).sum();
+        final ByteBuf response = Responses.number(allocator, "+OK ", state.messages.size(), " ");
+        ByteBufUtil.writeAscii(Responses.writeNumber(response, size), "\r\n");
+        return response;
+    }
 
-        if (closeConnection) {
-            ctx.close();
+    /**
+     * Handles the LIST command.
+     *
+     * @param state     session state
+     * @param mailboxes mailboxes manager
+     * @param num       message number or 0 to list all messages
+     * @param allocator buffer allocator
+     * @return the response
+     */
+    private static ByteBuf list(State state, Mailboxes mailboxes, int num, ByteBufAllocator allocator) {
+        final ByteBuf response = allocator.buffer();
+        ByteBufUtil.writeAscii(response, "+OK\r\n");
+        final int first = num == 0 ? 1 : num;
+        final int last = num == 0 ? state.messages.size() : num;
+        for (int i = first; i <= last; i++) {
+            final String mail = state.messages.get(i - 1);
+            if (!state.deleted.contains(mail)) {
+                listing(response, i, mailboxes.getMessageSize(state.mailbox, mail));
+            }
         }
+        ByteBufUtil.writeAscii(response, ".\r\n");
+        return response;
+    }
+
+    /**
+     * Handles the RETR command.
+     *
+     * @param state     session state
+     * @param mailboxes mailboxes manager
+     * @param num       message number
+     * @param allocator buffer allocator
+     * @return the response
+     * @throws IOException if the message could not be read
+     */
+    private ByteBuf retr(State state, Mailboxes mailboxes, int num, ByteBufAllocator allocator)
+        throws IOException {
+        final String mail = state.messages.get(num - 1);
+        if (state.deleted.contains(mail)) {
+            return MESSAGE_DELETED.duplicate();
+        }
+        final ByteBuf content = read(state, mailboxes, mail, allocator);
+        if (content == null) {
+            return MESSAGE_DELETED.duplicate();
+        }
+        mailboxes.markSeen(state.mailbox, mail);
+        return MessageBuffers.multiline(allocator, "+OK " + content.readableBytes(), content);
+    }
+
+    /**
+     * Handles the TOP command.
+     *
+     * @param state     session state
+     * @param mailboxes mailboxes manager
+     * @param num       message number
+     * @param lines     number of body lines
+     * @param allocator buffer allocator
+     * @return the response
+     * @throws IOException if the message could not be read
+     */
+    private ByteBuf top(State state, Mailboxes mailboxes, int num, int lines, ByteBufAllocator allocator)
+        throws IOException {
+        final String mail = state.messages.get(num - 1);
+        if (state.deleted.contains(mail)) {
+            return MESSAGE_DELETED.duplicate();
+        }
+        final MessageMetadata metadata = mailboxes.getMetadata(state.mailbox, mail);
+        if (metadata == null) {
+            return MESSAGE_DELETED.duplicate();
+        }
+        // Send message headers and the given number of body lines, the rest is not read
+        try (InputStream in = mailboxes.openMessage(state.mailbox, mail)) {
+            if (in == null) {
+                return MESSAGE_DELETED.duplicate();
+            }
+            final long sizeHint = lines >= metadata.getLines() ? metadata.getSize()
+                : Math.min(metadata.getSize(), metadata.getHeaderLength() + TOP_READ_AHEAD);
+            return MessageBuffers.multiline(allocator, "+OK",
+                MessageBuffers.readTop(in, (int) sizeHint, lines, allocator));
+        }
+    }
+
+    /**
+     * Reads the whole message from the mailbox into a buffer.
+     *
+     * @param state     session state
+     * @param mailboxes mailboxes manager
+     * @param mail      message ID
+     * @param allocator buffer allocator
+     * @return the message bytes or {@code null} if the message has been removed
+     * @throws IOException if the message could not be read
+     */
+    private ByteBuf read(State state, Mailboxes mailboxes, String mail, ByteBufAllocator allocator)
+        throws IOException {
+        try (InputStream in = mailboxes.openMessage(state.mailbox, mail)) {
+            if (in == null) {
+                return null;
+            }
+            return MessageBuffers.read(in, (int) mailboxes.getMessageSize(state.mailbox, mail), allocator);
+        }
+    }
+
+    /**
+     * Handles the QUIT command and removes the messages marked as deleted.
+     *
+     * @param state     session state
+     * @param mailboxes mailboxes manager
+     * @return the response
+     */
+    private ByteBuf quit(State state, Mailboxes mailboxes) {
+        if (state.mailbox != null) {
+            state.deleted.forEach(mail -> mailboxes.deleteMessage(state.mailbox, mail));
+        }
+        return OK.duplicate();
     }
 
     /**
      * POP3 session state.
      */
     private static class State implements Serializable {
+        private final String id;
+        private final transient SessionExecutor session;
+        private final transient Command command = new Command();
         private String mailbox;
         private List<String> messages;
         private List<String> deleted;
+
+        private State(String id, SessionExecutor session) {
+            this.id = id;
+            this.session = session;
+        }
+    }
+
+    /**
+     * POP3 commands.
+     */
+    private enum Verb {
+        USER, PASS, APOP, CAPA, STLS, STAT, LIST, UIDL, RETR, TOP, DELE, RSET, NOOP, QUIT
     }
 }
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Protocol responses encoded straight to buffers.
+ *
+ * <p>Constant responses are encoded once to shared read-only buffers, a {@link ByteBuf#duplicate()
+ * duplicate} of such a buffer is written to the channel. Dynamic responses are written to pooled
+ * buffers with no intermediate strings.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+final class Responses {
+
+    private static final int MAX_NUMBER_LENGTH = 20;
+
+    private Responses() {
+    }
+
+    /**
+     * Encodes a constant response.
+     *
+     * @param response response including the line delimiter
+     * @return the shared read-only buffer which must be duplicated before writing
+     */
+    static ByteBuf constant(String response) {
+        final byte[] bytes = response.getBytes(CharsetUtil.US_ASCII);
+        return Unpooled.unreleasableBuffer(Unpooled.directBuffer(bytes.length).writeBytes(bytes).asReadOnly());
+    }
+
+    /**
+     * Builds a response with a text value, e.g. {@code 250 sender <value> OK}.
+     *
+     * @param allocator buffer allocator
+     * @param prefix    text before the value
+     * @param value     the value
+     * @param suffix    text after the value including the line delimiter
+     * @return the response
+     */
+    static ByteBuf text(ByteBufAllocator allocator, String prefix, CharSequence value, String suffix) {
+        final ByteBuf response = allocator.buffer(prefix.length() + value.length() + suffix.length());
+        ByteBufUtil.writeAscii(response, prefix);
+        ByteBufUtil.writeAscii(response, value);
+        ByteBufUtil.writeAscii(response, suffix);
+        return response;
+    }
+
+    /**
+     * Builds a response with a number value, e.g. {@code 250 <value> bytes accepted}.
+     *
+     * @param allocator buffer allocator
+     * @param prefix    text before the value
+     * @param value     the value
+     * @param suffix    text after the value including the line delimiter
+     * @return the response
+     */
+    static ByteBuf number(ByteBufAllocator allocator, String prefix, long value, String suffix) {
+        final ByteBuf response = allocator.buffer(prefix.length() + MAX_NUMBER_LENGTH + suffix.length());
+        ByteBufUtil.writeAscii(response, prefix);
+        writeNumber(response, value);
+        ByteBufUtil.writeAscii(response, suffix);
+        return response;
+    }
+
+    /**
+     * Writes a decimal number to the buffer.
+     *
+     * @param buf   buffer to write to
+     * @param value non-negative number
+     * @return the buffer
+     */
+    static ByteBuf writeNumber(ByteBuf buf, long value) {
+        if (value < 10) {
+            return buf.writeByte((int) ('0' + value));
+        }
+        long divisor = 10;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buf.writeByte((int) ('0' + value / divisor % 10));
+        }
+        return buf;
+    }
+
+    /**
+     * Decodes the response for logging.
+     *
+     * @param response response
+     * @return the response text
+     */
+    static String toString(ByteBuf response) {
+        return response.toString(CharsetUtil.UTF_8);
+    }
+}
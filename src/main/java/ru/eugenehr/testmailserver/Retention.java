@@ -0,0 +1,389 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.eugenehr.testmailserver.store.MailStore;
+import ru.eugenehr.testmailserver.store.MailStoreListener;
+
+/**
+ * Retention of the stored messages.
+ *
+ * <p>Limits the age of the messages, the number and the total size of the messages in a mailbox
+ * and the total size of all messages. The usage of every mailbox is counted as the store reports
+ * the added and removed messages, so checking a limit costs a counter update and no directory is
+ * rescanned. A background purger removes the oldest messages over the limits in batches, the store
+ * posts a {@link ru.eugenehr.testmailserver.event.MailboxEvent} for every removed message. The age
+ * of a message is taken from its {@link MessageIdGenerator} ID, the messages named by other
+ * programs are removed by the size limits only. A limit of 0 means no limit. The sizes are the
+ * stored sizes, so the compressed messages are counted as the disk space they take.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class Retention implements MailStoreListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(Retention.class);
+    /**
+     * Default interval in milliseconds of the purger runs.
+     */
+    private static final long PURGE_INTERVAL = 1000;
+    /**
+     * Maximum number of the messages removed by a purger batch.
+     */
+    private static final int PURGE_BATCH = 1000;
+
+    private final MailStore store;
+    private final long purgeInterval;
+    private volatile long maxAge;
+    private volatile int maxMessages;
+    private volatile long maxBytes;
+    private volatile long quota;
+    private final ConcurrentMap<String, Usage> usage = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    /**
+     * Mailboxes exceeding the message number or size limit.
+     */
+    private final Set<String> overLimit = ConcurrentHashMap.newKeySet();
+    /**
+     * Serializes the purger runs.
+     */
+    private final Object purgeLock = new Object();
+    private ScheduledExecutorService purger;
+
+    /**
+     * Creates the retention of the store messages and counts the stored messages.
+     *
+     * @param store mail store
+     */
+    Retention(MailStore store) {
+        this(store, PURGE_INTERVAL);
+    }
+
+    /**
+     * Creates the retention of the store messages and counts the stored messages.
+     *
+     * @param store         mail store
+     * @param purgeInterval interval in milliseconds of the purger runs
+     */
+    Retention(MailStore store, long purgeInterval) {
+        this.store = store;
+        this.purgeInterval = purgeInterval;
+        for (String mailbox : store.getMailboxes()) {
+            for (String message : store.getMessages(mailbox)) {
+                messageAdded(mailbox, message, store.getStoredSize(mailbox, message));
+            }
+        }
+        store.setListener(this);
+    }
+
+    public long getMaxAge() {
+        return TimeUnit.MILLISECONDS.toSeconds(maxAge);
+    }
+
+    /**
+     * Sets the maximum age of the messages.
+     *
+     * @param maxAge maximum age in seconds or 0 to keep the messages forever
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = TimeUnit.SECONDS.toMillis(maxAge);
+        if (maxAge > 0) {
+            logger.info("Removing messages older than {} seconds", maxAge);
+        }
+        start();
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Sets the maximum number of messages in a mailbox.
+     *
+     * @param maxMessages maximum number of messages or 0 if not limited
+     */
+    public void setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+        if (maxMessages > 0) {
+            logger.info("Keeping up to {} messages per mailbox", maxMessages);
+        }
+        usage.keySet().forEach(this::checkLimits);
+        start();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the maximum total size of the messages in a mailbox.
+     *
+     * @param maxBytes maximum size in bytes or 0 if not limited
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (maxBytes > 0) {
+            logger.info("Keeping up to {} bytes of messages per mailbox", maxBytes);
+        }
+        usage.keySet().forEach(this::checkLimits);
+        start();
+    }
+
+    public long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Sets the maximum total size of all messages.
+     *
+     * @param quota maximum size in bytes or 0 if not limited
+     */
+    public void setQuota(long quota) {
+        this.quota = quota;
+        if (quota > 0) {
+            logger.info("Keeping up to {} bytes of messages in all mailboxes", quota);
+        }
+        start();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Gets the number of messages in a mailbox.
+     *
+     * @param mailbox mailbox
+     * @return the number of messages
+     */
+    public long getMessages(String mailbox) {
+        final Usage mailboxUsage = usage.get(mailbox);
+        return mailboxUsage == null ? 0 : mailboxUsage.messages;
+    }
+
+    /**
+     * Gets the total size of the messages in a mailbox.
+     *
+     * @param mailbox mailbox
+     * @return the size in bytes
+     */
+    public long getBytes(String mailbox) {
+        final Usage mailboxUsage = usage.get(mailbox);
+        return mailboxUsage == null ? 0 : mailboxUsage.bytes;
+    }
+
+    @Override
+    public void messageAdded(String mailbox, String message, long size) {
+        usage.compute(mailbox, (key, value) -> {
+            final Usage result = value == null ? new Usage() : value;
+            result.messages++;
+            result.bytes += size;
+            return result;
+        });
+        totalBytes.addAndGet(size);
+        checkLimits(mailbox);
+    }
+
+    @Override
+    public void messageRemoved(String mailbox, String message, long size) {
+        usage.computeIfPresent(mailbox, (key, value) -> {
+            value.messages--;
+            value.bytes -= size;
+            return value.messages > 0 ? value : null;
+        });
+        totalBytes.addAndGet(-size);
+    }
+
+    /**
+     * Removes the messages over the limits at once.
+     *
+     * @return the number of removed messages
+     */
+    int purge() {
+        synchronized (purgeLock) {
+            int purged = 0;
+            int batch;
+            do {
+                batch = purgeBatch();
+                purged += batch;
+            } while (batch >= PURGE_BATCH);
+            return purged;
+        }
+    }
+
+    /**
+     * Stops the purger.
+     */
+    synchronized void shutdown() {
+        if (purger != null) {
+            purger.shutdown();
+            try {
+                purger.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            purger = null;
+        }
+    }
+
+    /**
+     * Starts the purger once a limit is set.
+     */
+    private synchronized void start() {
+        if (purger != null || maxAge <= 0 && maxMessages <= 0 && maxBytes <= 0 && quota <= 0) {
+            return;
+        }
+        purger = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("retention-purger-"));
+        purger.scheduleWithFixedDelay(() -> {
+            try {
+                purge();
+            } catch (Exception ex) {
+                logger.error("Could not purge messages: {}", ex.getMessage());
+            }
+        }, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Marks the mailbox to be purged if it exceeds the limits.
+     */
+    private void checkLimits(String mailbox) {
+        if (isOverLimit(mailbox)) {
+            overLimit.add(mailbox);
+        }
+    }
+
+    private boolean isOverLimit(String mailbox) {
+        final Usage mailboxUsage = usage.get(mailbox);
+        if (mailboxUsage == null) {
+            return false;
+        }
+        final int max = maxMessages;
+        final long maxSize = maxBytes;
+        return max > 0 && mailboxUsage.messages > max || maxSize > 0 && mailboxUsage.bytes > maxSize;
+    }
+
+    /**
+     * Removes up to {@link #PURGE_BATCH} oldest messages over the limits.
+     *
+     * @return the number of removed messages
+     */
+    private int purgeBatch() {
+        int capped = 0;
+        for (String mailbox : new ArrayList<>(overLimit)) {
+            if (capped >= PURGE_BATCH) {
+                break;
+            }
+            overLimit.remove(mailbox);
+            final Iterator<String> messages = store.getMessages(mailbox).iterator();
+            while (capped < PURGE_BATCH && isOverLimit(mailbox) && messages.hasNext()) {
+                if (!delete(mailbox, messages.next())) {
+                    break;
+                }
+                capped++;
+            }
+            // Purged by the next batch
+            checkLimits(mailbox);
+        }
+
+        int expired = 0;
+        final long age = maxAge;
+        if (age > 0) {
+            final long expiredBefore = System.currentTimeMillis() - age;
+            for (String mailbox : store.getMailboxes()) {
+                for (String message : store.getMessages(mailbox)) {
+                    if (capped + expired >= PURGE_BATCH) {
+                        return purged(capped, expired, 0);
+                    }
+                    final long timestamp = MessageIdGenerator.timestamp(message);
+                    if (timestamp >= expiredBefore) {
+                        // The messages are sorted by the time
+                        break;
+                    }
+                    if (timestamp >= 0 && delete(mailbox, message)) {
+                        expired++;
+                    }
+                }
+            }
+        }
+
+        int overQuota = 0;
+        final long maxTotal = quota;
+        if (maxTotal > 0 && totalBytes.get() > maxTotal) {
+            // The oldest message of every mailbox ordered by the message IDs, that is by the time
+            final PriorityQueue<Map.Entry<String, String>> oldest = new PriorityQueue<>(Map.Entry.comparingByKey());
+            for (String mailbox : store.getMailboxes()) {
+                first(mailbox).ifPresent(message -> oldest.add(new SimpleImmutableEntry<>(message, mailbox)));
+            }
+            while (totalBytes.get() > maxTotal && capped + expired + overQuota < PURGE_BATCH && !oldest.isEmpty()) {
+                final Map.Entry<String, String> head = oldest.poll();
+                if (delete(head.getValue(), head.getKey())) {
+                    overQuota++;
+                    first(head.getValue()).ifPresent(message -> oldest.add(new SimpleImmutableEntry<>(message,
+                        head.getValue())));
+                }
+            }
+        }
+
+        return purged(capped, expired, overQuota);
+    }
+
+    private static int purged(int capped, int expired, int overQuota) {
+        final int purged = capped + expired + overQuota;
+        if (purged > 0) {
+            logger.info("Purged {} messages: {} over mailbox limits, {} expired, {} over quota", purged, capped,
+                expired, overQuota);
+        }
+        return purged;
+    }
+
+    private Optional<String> first(String mailbox) {
+        return store.getMessages(mailbox).stream().findFirst();
+    }
+
+    private boolean delete(String mailbox, String message) {
+        if (store.deleteMessage(mailbox, message)) {
+            logger.debug("Message {} purged from {}", message, mailbox);
+            return true;
+        }
+        logger.warn("Could not purge message {} from {}", message, mailbox);
+        return false;
+    }
+
+    /**
+     * Usage of a mailbox.
+     */
+    private static final class Usage {
+        volatile long messages;
+        volatile long bytes;
+    }
+}
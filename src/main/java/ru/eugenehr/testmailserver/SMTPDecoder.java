@@ -0,0 +1,215 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.ByteProcessor;
+
+/**
+ * SMTP frame decoder.
+ *
+ * <p>In the command mode it splits the inbound stream into CRLF terminated lines like
+ * {@link io.netty.handler.codec.DelimiterBasedFrameDecoder} does. After the handler switches it
+ * to the data mode with {@link #startData()} the decoder streams the message content as
+ * {@link MessageContent} slices of the inbound buffer. Stuffed dots are skipped without copying
+ * and the {@code CRLF.CRLF} terminator produces the last content chunk and switches the decoder
+ * back to the command mode.
+ *
+ * <p>The decoder switches to the chunk mode by itself on a {@code BDAT} command, because the client
+ * sends the chunk right after the command without waiting for a response. The chunk bytes are
+ * passed as is and the last {@link MessageContent} of the chunk is marked as last.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class SMTPDecoder extends ByteToMessageDecoder {
+
+    private static final byte[] LAST = {'L', 'A', 'S', 'T'};
+
+    private final int maxLineLength;
+    private final Command command = new Command();
+    private boolean data;
+    /**
+     * Remaining bytes of the BDAT chunk being received.
+     */
+    private long chunkRemaining;
+    /**
+     * {@code true} if the next content byte is the first byte of a line.
+     */
+    private boolean lineStart;
+
+    /**
+     * Constructor.
+     *
+     * @param maxLineLength maximum length of a command line
+     */
+    public SMTPDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Switches the decoder to the data mode. Must be called from the event loop while handling
+     * the {@code DATA} command.
+     */
+    public void startData() {
+        data = true;
+        lineStart = true;
+    }
+
+    /**
+     * Discards the received bytes which are not decoded yet, e.g. the plain text input pipelined
+     * after {@code STARTTLS}. Must be called from the event loop.
+     */
+    public void discardInput() {
+        final ByteBuf in = internalBuffer();
+        in.skipBytes(in.readableBytes());
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (data) {
+            decodeData(in, out);
+        } else if (chunkRemaining > 0) {
+            decodeChunk(in, out);
+        } else {
+            decodeLine(in, out);
+        }
+    }
+
+    /**
+     * Decodes a single command line without line delimiter.
+     */
+    private void decodeLine(ByteBuf in, List<Object> out) {
+        final int eol = in.forEachByte(ByteProcessor.FIND_LF);
+        if (eol < 0) {
+            if (in.readableBytes() > maxLineLength) {
+                in.skipBytes(in.readableBytes());
+                throw new TooLongFrameException("Command line is longer than " + maxLineLength + " bytes");
+            }
+            return;
+        }
+        int length = eol - in.readerIndex();
+        if (length > 0 && in.getByte(eol - 1) == '\r') {
+            length--;
+        }
+        final ByteBuf line = in.readRetainedSlice(length);
+        in.readerIndex(eol + 1);
+        out.add(line);
+
+        final long chunkSize = command.reset(line).verb(SMTPHandler.VERBS) == SMTPHandler.Verb.BDAT
+            ? chunkSize(command) : -1;
+        if (chunkSize == 0) {
+            out.add(new MessageContent(Unpooled.EMPTY_BUFFER, true));
+        } else if (chunkSize > 0) {
+            chunkRemaining = chunkSize;
+        }
+    }
+
+    /**
+     * Decodes the available bytes of a BDAT chunk.
+     */
+    private void decodeChunk(ByteBuf in, List<Object> out) {
+        final int length = (int) Math.min(chunkRemaining, in.readableBytes());
+        chunkRemaining -= length;
+        out.add(new MessageContent(in.readRetainedSlice(length), chunkRemaining == 0));
+    }
+
+    /**
+     * Decodes as much of the message content as available.
+     */
+    private void decodeData(ByteBuf in, List<Object> out) {
+        while (in.isReadable()) {
+            if (lineStart && in.getByte(in.readerIndex()) == '.') {
+                final int terminator = terminatorLength(in);
+                if (terminator < 0) {
+                    return;
+                }
+                if (terminator > 0) {
+                    // End of data
+                    in.skipBytes(terminator);
+                    data = false;
+                    out.add(new MessageContent(Unpooled.EMPTY_BUFFER, true));
+                    return;
+                }
+                // Stuffed dot
+                in.skipBytes(1);
+            }
+
+            // Scan forward until a line that starts with a dot or the end of buffer
+            final int start = in.readerIndex();
+            final int end = in.writerIndex();
+            int index = start;
+            lineStart = false;
+            while (index < end) {
+                final int eol = in.forEachByte(index, end - index, ByteProcessor.FIND_LF);
+                if (eol < 0) {
+                    index = end;
+                    break;
+                }
+                index = eol + 1;
+                if (index == end || in.getByte(index) == '.') {
+                    lineStart = true;
+                    break;
+                }
+            }
+            out.add(new MessageContent(in.readRetainedSlice(index - start), false));
+        }
+    }
+
+    /**
+     * Parses the arguments of {@code BDAT <size> [LAST]} command. Must match the parsing of the
+     * command by {@link SMTPHandler}.
+     *
+     * @param command command positioned after the verb
+     * @return the chunk size or -1 if the arguments are not valid
+     */
+    private static long chunkSize(Command command) {
+        final long size = command.number();
+        command.keyword(LAST);
+        return command.isEnd() ? size : -1;
+    }
+
+    /**
+     * Tests if the line at the reader index is the end of data line.
+     *
+     * @return the length of terminator, {@code 0} if the line is not a terminator or {@code -1}
+     *     if more bytes are required
+     */
+    private static int terminatorLength(ByteBuf in) {
+        final int index = in.readerIndex();
+        final int readable = in.readableBytes();
+        if (readable < 2) {
+            return -1;
+        }
+        final byte next = in.getByte(index + 1);
+        if (next == '\n') {
+            return 2;
+        }
+        if (next != '\r') {
+            return 0;
+        }
+        if (readable < 3) {
+            return -1;
+        }
+        return in.getByte(index + 2) == '\n' ? 3 : 0;
+    }
+}
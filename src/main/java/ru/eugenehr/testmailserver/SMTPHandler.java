@@ -16,24 +16,24 @@
 
 package ru.eugenehr.testmailserver;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslContext;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,50 +52,96 @@ import ru.eugenehr.testmailserver.ui.UIEventBus;
 public class SMTPHandler extends ChannelInboundHandlerAdapter {
 
     private static final Logger logger = LoggerFactory.getLogger(SMTPHandler.class);
-    private static final Pattern RCPT_PATTERN = Pattern.compile("^.*<([^>]+)>$");
+    private static final AttributeKey<State> STATE = AttributeKey.valueOf(SMTPHandler.class, "state");
+    /**
+     * SMTP command verbs.
+     */
+    static final Command.Verbs<Verb> VERBS = new Command.Verbs<>(Verb.class);
+    private static final byte[] FROM = {'F', 'R', 'O', 'M', ':'};
+    private static final byte[] TO = {'T', 'O', ':'};
+    private static final byte[] SIZE = {'S', 'I', 'Z', 'E', '='};
+    private static final byte[] BODY = {'B', 'O', 'D', 'Y', '='};
+    private static final byte[] BINARYMIME = "BINARYMIME".getBytes(CharsetUtil.US_ASCII);
+    private static final byte[] LAST = {'L', 'A', 'S', 'T'};
+    private static final ByteBuf GREETING = Responses.constant("220 Test Mail Server\r\n");
+    private static final ByteBuf TOO_MANY_SESSIONS = Responses.constant(
+        "421 Test Mail Server too many connections, try again later\r\n");
+    private static final ByteBuf READY_TO_START_TLS = Responses.constant("220 Ready to start TLS\r\n");
+    private static final ByteBuf OK = Responses.constant("250 OK\r\n");
+    private static final ByteBuf START_DATA = Responses.constant(
+        "354 enter mail, end with line containing only \".\"\r\n");
+    private static final ByteBuf CLOSING = Responses.constant("221 Closing connection\r\n");
+    private static final ByteBuf LOCAL_ERROR = Responses.constant("451 local error in processing\r\n");
+    private static final ByteBuf TOO_MANY_RECIPIENTS = Responses.constant("452 too many recipients\r\n");
+    private static final ByteBuf TLS_NOT_AVAILABLE = Responses.constant("454 TLS not available\r\n");
+    private static final ByteBuf ERROR = Responses.constant("500 ERROR\r\n");
+    private static final ByteBuf SYNTAX_ERROR = Responses.constant("501 syntax error\r\n");
+    private static final ByteBuf INVALID_SIZE = Responses.constant("501 invalid SIZE parameter\r\n");
+    private static final ByteBuf BDAT_IN_PROGRESS = Responses.constant("503 BDAT transaction in progress\r\n");
+    private static final ByteBuf BINARYMIME_WITHOUT_BDAT = Responses.constant(
+        "503 BINARYMIME message must be sent with BDAT\r\n");
+    private static final ByteBuf TLS_ACTIVE = Responses.constant("503 TLS already active\r\n");
+    private static final ByteBuf BAD_SEQUENCE_NO_SENDER = Responses.constant("503 no sender given\r\n");
+    private static final ByteBuf NO_SENDER = Responses.constant("550 no sender given\r\n");
+    private static final ByteBuf NO_RECIPIENT = Responses.constant("550 no recipient given\r\n");
+    private static final ByteBuf NO_RECIPIENTS = Responses.constant("554 no recipients given\r\n");
+    private static final ByteBuf SIZE_EXCEEDED = Responses.constant(
+        "552 message size exceeds fixed maximum message size\r\n");
+    /**
+     * EHLO response with the ESMTP extensions, the maximum message size is appended.
+     */
+    private static final String EHLO_RESPONSE = "250-Test Mail Server\r\n"
+        + "250-PIPELINING\r\n"
+        + "250-8BITMIME\r\n"
+        + "250-CHUNKING\r\n"
+        + "250-BINARYMIME\r\n"
+        + "250 SIZE ";
+    /**
+     * EHLO response of a plain text session if TLS is configured.
+     */
+    private static final String EHLO_STARTTLS_RESPONSE = EHLO_RESPONSE.replace("250 SIZE ",
+        "250-STARTTLS\r\n250 SIZE ");
 
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         final Channel channel = ctx.channel();
+        final AdmissionControl.Limit limit = MailServer.getInstance().getAdmissionControl()
+            .admit(channel.remoteAddress());
+        if (limit != null) {
+            logger.debug("Client {} rejected, {} limit exceeded", channel.remoteAddress(), limit);
+            AdmissionControl.reject(channel, TOO_MANY_SESSIONS.duplicate());
+            return;
+        }
         logger.info("Client connected: {}", channel.remoteAddress());
 
-        final Attribute<State> state = channel.attr(AttributeKey.valueOf("state"));
-        state.set(new State());
-
-        // Send greetings
-        final String message = "220 Test Mail Server\r\n";
-        logger.debug(">>: {}", message.trim());
-        channel.writeAndFlush(message);
+        final State state = new State(channel.id().toString(),
+            new SessionExecutor(ctx, MailServer.getInstance().getDeliveryExecutor()));
+        channel.attr(STATE).set(state);
 
         // Notify UI
-        UIEventBus.post(new SMTPSessionEvent(channel.id().toString(), SessionEvent.Type.CREATED));
-        UIEventBus.post(new SMTPSessionLogEvent(channel.id().toString(), Direction.SERVER, message));
+        UIEventBus.post(new SMTPSessionEvent(state.id, SessionEvent.Type.CREATED));
+
+        // Send greetings
+        reply(channel, state.id, GREETING.duplicate());
+        channel.flush();
     }
 
     @Override
     public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
+        final State state = ctx.channel().attr(STATE).get();
+        if (state == null) {
+            // Rejected by the admission control
+            return;
+        }
         logger.info("Client disconnected: {}", ctx.channel().remoteAddress());
-
-        final Channel channel = ctx.channel();
-        final String channelId = channel.id().toString();
+        MailServer.getInstance().getAdmissionControl().release(ctx.channel().remoteAddress());
 
         // Remove temporary files
-        final Attribute<State> attr = channel.attr(AttributeKey.valueOf("state"));
-        final State state = attr.get();
-
-        if (state.file != null && state.file.exists()) {
-            logger.debug("Cleaning temporary files...");
-            try {
-                if (state.file.delete()) {
-                    logger.debug("File '{}' deleted", state.file.getAbsolutePath());
-                }
-            } catch (Exception ex) {
-                logger.error("Could not delete file '{}': {}", state.file.getAbsolutePath(), ex.getMessage());
-            }
-        }
+        state.session.close();
+        state.session.execute(state::cleanup);
 
         // Notify UI
-        UIEventBus.post(new SMTPSessionEvent(channelId, SessionEvent.Type.CLOSED));
+        UIEventBus.post(new SMTPSessionEvent(state.id, SessionEvent.Type.CLOSED));
     }
 
     @Override
@@ -118,134 +164,463 @@ public class SMTPHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        final Channel channel = ctx.channel();
-        final String channelId = channel.id().toString();
-        logger.debug("<<: {}", msg);
+        final State state = ctx.channel().attr(STATE).get();
+        if (state.session.defer(msg)) {
+            return;
+        }
+
+        if (msg instanceof MessageContent) {
+            try {
+                data(ctx, state, (MessageContent) msg);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+            return;
+        }
+
+        final ByteBuf line = (ByteBuf) msg;
+        try {
+            command(ctx, state, state.command.reset(line));
+        } finally {
+            line.release();
+        }
+    }
 
-        final String message = msg.toString();
-        UIEventBus.post(new SMTPSessionLogEvent(channelId, Direction.CLIENT, message));
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // Flush the responses to all commands of the batch at once
+        ctx.channel().flush();
+    }
 
-        final Attribute<State> attr = channel.attr(AttributeKey.valueOf("state"));
-        final State state = attr.get();
+    /**
+     * Handles an SMTP command.
+     *
+     * @param ctx     channel handler context
+     * @param state   session state
+     * @param command command line
+     */
+    private void command(ChannelHandlerContext ctx, State state, Command command) {
+        final Channel channel = ctx.channel();
+        final String channelId = state.id;
+        if (logger.isDebugEnabled()) {
+            logger.debug("<<: {}", command);
+        }
+        if (UIEventBus.isEnabled()) {
+            UIEventBus.post(new SMTPSessionLogEvent(channelId, Direction.CLIENT, command.toString()));
+        }
 
-        String response;
+        final Verb verb = command.verb(VERBS);
+        final ByteBuf response;
         boolean closeConnection = false;
-        if (state.data) {
-            // Reading data
-            if (message.equals(".")) {
-                state.data = false;
-                final long length = state.close();
-                if (state.file != null) {
-                    final Set<String> files = MailServer.getInstance().getMailboxes()
-                        .addMessage(state.from, state.to, state.file);
-                    logger.info("Message saved to {}", files);
-                }
-                response = "250 " + length + " bytes accepted\r\n";
-            } else {
-                if (message.equals("..")) {
-                    state.data(".\r\n");
-                } else {
-                    state.data(message + "\r\n");
-                }
-                return;
-            }
+        if (verb == null) {
+            response = ERROR.duplicate();
         } else {
-            if (message.matches("^(HELO|EHLO).*")) {
-                response = "250 OK\r\n";
-            } else if (message.startsWith("MAIL FROM:")) {
-                final String from = message.substring(10).trim();
-                if (from.isEmpty()) {
-                    response = "550 no sender given\r\n";
-                } else {
-                    final Matcher matcher = RCPT_PATTERN.matcher(from);
-                    state.from = (matcher.matches() ? matcher.group(1) : from).trim();
-                    if (state.from.startsWith("<") && state.from.endsWith(">")) {
-                        state.from = state.from.substring(1, state.from.length() - 1);
+            switch (verb) {
+                case EHLO:
+                    final boolean tlsAvailable = MailServer.getInstance().getSslContext() != null
+                        && !Tls.isActive(ctx.pipeline());
+                    response = Responses.number(channel.alloc(),
+                        tlsAvailable ? EHLO_STARTTLS_RESPONSE : EHLO_RESPONSE,
+                        MailServer.getInstance().getMaxMessageSize(), "\r\n");
+                    break;
+                case HELO:
+                    response = OK.duplicate();
+                    break;
+                case MAIL:
+                    response = mail(channel, state, command);
+                    break;
+                case RCPT:
+                    if (!command.prefix(TO)) {
+                        response = SYNTAX_ERROR.duplicate();
+                        break;
+                    }
+                    final String recipient = command.rest();
+                    final int maxRecipients = MailServer.getInstance().getMaxRecipients();
+                    if (recipient.isEmpty()) {
+                        response = NO_RECIPIENT.duplicate();
+                    } else if (maxRecipients > 0 && state.to.size() >= maxRecipients) {
+                        response = TOO_MANY_RECIPIENTS.duplicate();
+                    } else {
+                        state.to.add(recipient);
+                        response = Responses.text(channel.alloc(), "250 recipient ", recipient, " OK\r\n");
                     }
-                    response = "250 sender " + state.from + " OK\r\n";
+                    break;
+                case DATA:
+                    if (!command.isEnd()) {
+                        response = SYNTAX_ERROR.duplicate();
+                    } else if (state.chunking) {
+                        response = BDAT_IN_PROGRESS.duplicate();
+                    } else if (state.binary) {
+                        response = BINARYMIME_WITHOUT_BDAT.duplicate();
+                    } else if (state.from == null) {
+                        response = NO_SENDER.duplicate();
+                    } else if (state.to.isEmpty()) {
+                        response = NO_RECIPIENTS.duplicate();
+                    } else {
+                        final long sizeHint = state.declaredSize;
+                        state.session.execute(() -> state.open(channel.alloc(), sizeHint));
+                        ctx.pipeline().get(SMTPDecoder.class).startData();
+                        response = START_DATA.duplicate();
+                    }
+                    break;
+                case BDAT:
+                    // Must match the parsing of the command by SMTPDecoder
+                    final long chunkSize = command.number();
+                    final boolean last = command.keyword(LAST);
+                    if (chunkSize < 0 || !command.isEnd()) {
+                        response = SYNTAX_ERROR.duplicate();
+                        break;
+                    }
+                    // The decoder reads the chunk right after the command, the response is sent when the chunk
+                    // is received
+                    bdat(channel, state, chunkSize, last);
+                    return;
+                case STARTTLS:
+                    response = startTls(ctx, state, command);
+                    break;
+                case NOOP:
+                    response = OK.duplicate();
+                    break;
+                case QUIT:
+                    response = CLOSING.duplicate();
+                    closeConnection = true;
+                    break;
+                default:
+                    response = ERROR.duplicate();
+                    break;
+            }
+        }
+        reply(channel, channelId, response);
+
+        if (closeConnection) {
+            channel.flush();
+            ctx.close();
+        }
+    }
+
+    /**
+     * Handles the MAIL FROM command.
+     *
+     * @param channel client channel
+     * @param state   session state
+     * @param command command line
+     * @return the response
+     */
+    private static ByteBuf mail(Channel channel, State state, Command command) {
+        if (!command.prefix(FROM)) {
+            return SYNTAX_ERROR.duplicate();
+        }
+        if (command.isEnd()) {
+            return NO_SENDER.duplicate();
+        }
+        final String from = command.path().trim();
+
+        // ESMTP parameters
+        long size = 0;
+        boolean binary = false;
+        while (!command.isEnd()) {
+            if (command.prefix(SIZE)) {
+                size = command.number();
+                if (size < 0) {
+                    return INVALID_SIZE.duplicate();
                 }
-            } else if (message.startsWith("RCPT TO:")) {
-                String recipient = message.substring(8).trim();
-                if (recipient.isEmpty()) {
-                    response = "550 no recipient given\r\n";
-                } else {
-                    state.to.add(recipient);
-                    response = "250 recipient " + recipient + " OK\r\n";
+            } else if (command.prefix(BODY)) {
+                binary = command.keyword(BINARYMIME);
+                command.skipArgument();
+            } else {
+                command.skipArgument();
+            }
+        }
+
+        final long maxSize = MailServer.getInstance().getMaxMessageSize();
+        if (maxSize > 0 && size > maxSize) {
+            // Reject the message before any bytes are received
+            return SIZE_EXCEEDED.duplicate();
+        }
+        state.from = from;
+        state.binary = binary;
+        state.declaredSize = size;
+        return Responses.text(channel.alloc(), "250 sender ", state.from, " OK\r\n");
+    }
+
+    /**
+     * Handles the STARTTLS command.
+     *
+     * @param ctx     channel handler context
+     * @param state   session state
+     * @param command command line
+     * @return the response, the last one sent in plain text
+     */
+    private static ByteBuf startTls(ChannelHandlerContext ctx, State state, Command command) {
+        final SslContext sslContext = MailServer.getInstance().getSslContext();
+        if (!command.isEnd()) {
+            return SYNTAX_ERROR.duplicate();
+        }
+        if (sslContext == null) {
+            return TLS_NOT_AVAILABLE.duplicate();
+        }
+        if (Tls.isActive(ctx.pipeline())) {
+            return TLS_ACTIVE.duplicate();
+        }
+        // Forget the plain text session and drop the commands pipelined after STARTTLS (RFC 3207)
+        state.reset();
+        state.session.execute(state::cleanup);
+        state.session.close();
+        ctx.pipeline().get(SMTPDecoder.class).discardInput();
+        Tls.start(ctx.channel(), sslContext);
+        return READY_TO_START_TLS.duplicate();
+    }
+
+    /**
+     * Handles the BDAT command.
+     *
+     * @param channel   client channel
+     * @param state     session state
+     * @param chunkSize size of the chunk
+     * @param last      {@code true} if the chunk is the last one
+     */
+    private static void bdat(Channel channel, State state, long chunkSize, boolean last) {
+        state.chunkSize = chunkSize;
+        state.chunkLast = last;
+        final long maxSize = MailServer.getInstance().getMaxMessageSize();
+        if (state.from == null) {
+            state.chunkError = BAD_SEQUENCE_NO_SENDER;
+        } else if (state.to.isEmpty()) {
+            state.chunkError = NO_RECIPIENTS;
+        } else if (maxSize > 0 && state.received + state.chunkSize > maxSize) {
+            state.chunkError = SIZE_EXCEEDED;
+        } else if (!state.chunking) {
+            final long sizeHint = state.declaredSize;
+            state.chunking = true;
+            state.session.execute(() -> state.open(channel.alloc(), sizeHint));
+        }
+    }
+
+    /**
+     * Handles a chunk of the message content received with DATA or BDAT command.
+     *
+     * @param ctx     channel handler context
+     * @param state   session state
+     * @param content message content chunk
+     */
+    private void data(ChannelHandlerContext ctx, State state, MessageContent content) {
+        final Channel channel = ctx.channel();
+        final String channelId = state.id;
+        final ByteBuf buf = content.content();
+        logger.debug("<<: {} bytes of data", buf.readableBytes());
+
+        if (UIEventBus.isEnabled() && buf.isReadable()) {
+            UIEventBus.post(new SMTPSessionLogEvent(channelId, Direction.CLIENT, buf.toString(CharsetUtil.UTF_8)));
+        }
+
+        final long maxSize = MailServer.getInstance().getMaxMessageSize();
+        if (buf.isReadable() && state.chunkError == null && !state.oversized) {
+            state.received += buf.readableBytes();
+            if (maxSize > 0 && state.received > maxSize) {
+                // Discard the rest of the message
+                state.oversized = true;
+            }
+        }
+        if (buf.isReadable() && state.chunkError == null && !state.oversized) {
+            buf.retain();
+            state.session.execute(() -> {
+                try {
+                    state.data(buf);
+                } finally {
+                    buf.release();
                 }
-            } else if (message.equals("DATA")) {
-                if (state.from == null) {
-                    response = "550 no sender given\r\n";
-                } else if (state.to.isEmpty()) {
-                    response = "554 no recipients given\r\n";
-                } else {
-                    state.data = true;
-                    response = "354 enter mail, end with line containing only \".\"\r\n";
+            });
+        }
+        if (!content.isLast()) {
+            return;
+        }
+
+        if (state.chunkSize >= 0) {
+            // End of BDAT chunk
+            final long chunkSize = state.chunkSize;
+            final ByteBuf chunkError = state.chunkError;
+            state.chunkSize = -1;
+            state.chunkError = null;
+            if (chunkError != null) {
+                if (chunkError == SIZE_EXCEEDED) {
+                    state.reset();
+                    state.session.execute(state::cleanup);
                 }
-            } else if (message.equals("NOOP")) {
-                response = "250 OK\r\n";
-            } else if (message.equals("QUIT")) {
-                response = "221 Closing connection\r\n";
-                closeConnection = true;
-            } else {
-                response = "500 ERROR\r\n";
+                reply(channel, channelId, chunkError.duplicate());
+                return;
             }
+            if (!state.chunkLast) {
+                reply(channel, channelId, Responses.number(channel.alloc(), "250 ", chunkSize, " octets received\r\n"));
+                return;
+            }
+        }
+        if (state.oversized) {
+            state.reset();
+            state.session.execute(state::cleanup);
+            reply(channel, channelId, SIZE_EXCEEDED.duplicate());
+            return;
         }
-        logger.debug(">>: {}", response.trim());
-        channel.writeAndFlush(response);
-        UIEventBus.post(new SMTPSessionLogEvent(channelId, Direction.SERVER, response));
+        deliver(channel, channelId, state);
+    }
 
-        if (closeConnection) {
-            ctx.close();
+    /**
+     * Delivers the received message to the mailboxes off the event loop.
+     *
+     * @param channel   client channel
+     * @param channelId client channel ID
+     * @param state     session state
+     */
+    private void deliver(Channel channel, String channelId, State state) {
+        final String from = state.from;
+        final List<String> to = new ArrayList<>(state.to);
+        state.reset();
+        state.session.submitAsync(() -> {
+            final Mailboxes mailboxes = MailServer.getInstance().getMailboxes();
+            final long length = state.close();
+            final CompletableFuture<Void> stored;
+            try {
+                stored = mailboxes.addMessage(from, to, state.spool);
+            } finally {
+                state.cleanup();
+            }
+            // Acknowledge the message once it is durable
+            return stored.thenApply(ignored -> length);
+        }, (length, error) -> reply(channel, channelId, error == null
+            ? Responses.number(channel.alloc(), "250 ", length, " bytes accepted\r\n")
+            : LOCAL_ERROR.duplicate()));
+        // The delivery task is skipped after a failed spool task
+        state.session.execute(state::cleanup);
+    }
+
+    /**
+     * Sends a response to the client. The response is flushed when the read batch is completed.
+     *
+     * @param channel   client channel
+     * @param channelId client channel ID
+     * @param response  response to send
+     */
+    private void reply(Channel channel, String channelId, ByteBuf response) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(">>: {}", Responses.toString(response).trim());
+        }
+        if (UIEventBus.isEnabled()) {
+            UIEventBus.post(new SMTPSessionLogEvent(channelId, Direction.SERVER, Responses.toString(response)));
         }
+        channel.write(response);
     }
 
     /**
      * SMTP session state.
      */
     private static class State implements Serializable {
+        private final String id;
+        private final transient SessionExecutor session;
+        private final transient Command command = new Command();
         private final List<String> to = new ArrayList<>();
         private String from;
-        private File file;
-        private FileOutputStream stream;
-        private boolean data;
+        private MessageSpool spool;
+        /**
+         * {@code true} if the message is declared as BODY=BINARYMIME.
+         */
+        private boolean binary;
+        /**
+         * {@code true} if the message is being received with BDAT commands.
+         */
+        private boolean chunking;
+        /**
+         * Size of the BDAT chunk being received or -1.
+         */
+        private long chunkSize = -1;
+        private boolean chunkLast;
+        private ByteBuf chunkError;
+        /**
+         * Message size declared with MAIL FROM SIZE parameter or 0.
+         */
+        private long declaredSize;
+        /**
+         * Number of message bytes received.
+         */
+        private long received;
+        /**
+         * {@code true} if the message exceeds the maximum message size.
+         */
+        private boolean oversized;
+
+        private State(String id, SessionExecutor session) {
+            this.id = id;
+            this.session = session;
+        }
 
         /**
-         * Append data to temporary file.
+         * Starts spooling a new message.
          *
-         * @param message data to append
+         * @param allocator buffer allocator
+         * @param sizeHint  message size declared by the client or 0
          */
-        private void data(String message) {
+        private void open(ByteBufAllocator allocator, long sizeHint) {
+            cleanup();
+            final MailServer server = MailServer.getInstance();
+            final long maxSize = server.getMaxMessageSize();
+            spool = new MessageSpool(allocator, server.getSpoolThreshold(),
+                maxSize > 0 ? Math.min(sizeHint, maxSize) : sizeHint, server.isCompress());
+        }
+
+        /**
+         * Append data to the message spool.
+         *
+         * @param data data to append
+         */
+        private void data(ByteBuf data) {
             try {
-                if (file == null) {
-                    file = File.createTempFile("mail", ".msg");
-                    stream = new FileOutputStream(file);
-                }
-                stream.write(message.getBytes());
+                spool.write(data);
             } catch (IOException ex) {
-                logger.error("Could not write data to file '{}': {}", file.getAbsolutePath(), ex.getMessage());
+                logger.error("Could not spool message data: {}", ex.getMessage());
                 throw new RuntimeException(ex);
             }
         }
 
         /**
-         * Close temporary file.
+         * Completes the message spool.
          *
-         * @return the length in bytes of file.
+         * @return the length in bytes of message.
          */
         private long close() {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException ex) {
-                    logger.error("Could not close file '{}': {}", file.getAbsolutePath(), ex.getMessage());
-                    throw new RuntimeException(ex);
-                }
+            try {
+                return spool.close();
+            } catch (IOException ex) {
+                logger.error("Could not complete message spool: {}", ex.getMessage());
+                throw new RuntimeException(ex);
             }
-            stream = null;
-            if (file != null) {
-                return file.length();
+        }
+
+        /**
+         * Releases the message spool and removes its temporary file.
+         */
+        private void cleanup() {
+            if (spool != null) {
+                spool.release();
+                spool = null;
             }
-            return 0;
         }
+
+        /**
+         * Resets the mail transaction.
+         */
+        private void reset() {
+            from = null;
+            to.clear();
+            binary = false;
+            chunking = false;
+            declaredSize = 0;
+            received = 0;
+            oversized = false;
+        }
+    }
+
+    /**
+     * SMTP commands.
+     */
+    enum Verb {
+        HELO, EHLO, MAIL, RCPT, DATA, BDAT, STARTTLS, NOOP, QUIT
     }
 }
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandler;
+import io.netty.handler.traffic.AbstractTrafficShapingHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the blocking tasks of a client session on the {@link DeliveryExecutor}.
+ *
+ * <p>The tasks of a session run one at a time in the submission order. Completion callbacks run
+ * on the channel event loop. While a task submitted with {@link #submit(Callable, BiConsumer)} is
+ * running the inbound messages are deferred and replayed to the handler after its callback, so
+ * the responses are sent in the order of commands. The responses written by the callback and the
+ * replayed commands are flushed at once. The channel stops reading from the socket while the
+ * session has too many pending tasks or the delivery executor is saturated. The reads suspended by
+ * the traffic shaping are resumed by the traffic shaping only.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+class SessionExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionExecutor.class);
+    private static final int MAX_PENDING_TASKS = 16;
+    /**
+     * Channel attribute set by {@link AbstractTrafficShapingHandler} while it suspends the reads.
+     */
+    private static final AttributeKey<Boolean> READ_SUSPENDED = AttributeKey.valueOf(
+        AbstractTrafficShapingHandler.class.getName() + ".READ_SUSPENDED");
+
+    private final ChannelHandlerContext ctx;
+    private final DeliveryExecutor executor;
+    // Accessed by the delivery threads
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private boolean running;
+    private Throwable failure;
+    // Accessed by the event loop only
+    private final Queue<Object> deferred = new ArrayDeque<>();
+    private int pendingTasks;
+    private int awaitedTasks;
+    private boolean waitingForExecutor;
+
+    /**
+     * Constructor.
+     *
+     * @param ctx      channel handler context of the session
+     * @param executor delivery executor
+     */
+    SessionExecutor(ChannelHandlerContext ctx, DeliveryExecutor executor) {
+        this.ctx = ctx;
+        this.executor = executor;
+    }
+
+    /**
+     * Runs a task which result is not awaited. A failure of the task is passed to the callback of
+     * the next submitted task.
+     *
+     * @param task task to run
+     */
+    void execute(Runnable task) {
+        pendingTasks++;
+        enqueue(() -> {
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                logger.error("Session {} task failed: {}", ctx.channel().id(), ex.getMessage());
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+            ctx.executor().execute(this::taskCompleted);
+        });
+        updateAutoRead();
+    }
+
+    /**
+     * Runs a task and passes its result or failure to the callback on the event loop.
+     *
+     * @param task     task to run
+     * @param callback task completion callback
+     * @param <T>      type of the result
+     */
+    <T> void submit(Callable<T> task, BiConsumer<T, Throwable> callback) {
+        submitAsync(() -> CompletableFuture.completedFuture(task.call()), callback);
+    }
+
+    /**
+     * Runs a task that completes asynchronously and passes its result or failure to the callback
+     * on the event loop. The next task of the session does not wait for the completion, but the
+     * inbound messages are deferred until the callback runs.
+     *
+     * @param task     task to run
+     * @param callback task completion callback
+     * @param <T>      type of the result
+     */
+    <T> void submitAsync(Callable<? extends CompletionStage<T>> task, BiConsumer<T, Throwable> callback) {
+        pendingTasks++;
+        awaitedTasks++;
+        enqueue(() -> {
+            CompletionStage<T> stage = null;
+            Throwable error = failure;
+            failure = null;
+            if (error == null) {
+                try {
+                    stage = task.call();
+                } catch (Throwable ex) {
+                    logger.error("Session {} task failed: {}", ctx.channel().id(), ex.getMessage());
+                    error = ex;
+                }
+            }
+            if (stage == null) {
+                final CompletableFuture<T> failed = new CompletableFuture<>();
+                failed.completeExceptionally(error);
+                stage = failed;
+            }
+            stage.whenComplete((result, ex) -> ctx.executor().execute(() -> {
+                awaitedTasks--;
+                try {
+                    callback.accept(result, ex);
+                } catch (Throwable t) {
+                    ctx.fireExceptionCaught(t);
+                }
+                taskCompleted();
+                replay();
+                ctx.channel().flush();
+            }));
+        });
+        updateAutoRead();
+    }
+
+    /**
+     * Defers an inbound message if the session awaits a task result.
+     *
+     * @param msg inbound message
+     * @return {@code true} if the message has been deferred
+     */
+    boolean defer(Object msg) {
+        if (awaitedTasks == 0) {
+            return false;
+        }
+        deferred.add(msg);
+        return true;
+    }
+
+    /**
+     * Releases the deferred messages, e.g. of the closed session.
+     */
+    void close() {
+        Object msg;
+        while ((msg = deferred.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void enqueue(Runnable task) {
+        synchronized (tasks) {
+            if (running) {
+                tasks.add(task);
+                return;
+            }
+            running = true;
+        }
+        executor.execute(() -> runTasks(task));
+    }
+
+    private void runTasks(Runnable first) {
+        Runnable task = first;
+        while (task != null) {
+            task.run();
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                }
+            }
+        }
+    }
+
+    private void taskCompleted() {
+        pendingTasks--;
+        updateAutoRead();
+    }
+
+    private void replay() {
+        final ChannelInboundHandler handler = (ChannelInboundHandler) ctx.handler();
+        Object msg;
+        while (awaitedTasks == 0 && (msg = deferred.poll()) != null) {
+            try {
+                handler.channelRead(ctx, msg);
+            } catch (Throwable ex) {
+                ctx.fireExceptionCaught(ex);
+            }
+        }
+    }
+
+    private void updateAutoRead() {
+        final boolean saturated = executor.isSaturated();
+        final boolean autoRead = !saturated && pendingTasks < MAX_PENDING_TASKS && awaitedTasks == 0
+            && !Boolean.TRUE.equals(ctx.channel().attr(READ_SUSPENDED).get());
+        if (ctx.channel().config().isAutoRead() != autoRead) {
+            ctx.channel().config().setAutoRead(autoRead);
+        }
+        if (saturated && !waitingForExecutor) {
+            waitingForExecutor = true;
+            executor.whenAvailable(() -> ctx.executor().execute(() -> {
+                waitingForExecutor = false;
+                updateAutoRead();
+            }));
+        }
+    }
+}
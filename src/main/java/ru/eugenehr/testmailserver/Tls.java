@@ -0,0 +1,125 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+
+/**
+ * TLS support of the servers.
+ *
+ * <p>All sessions share a single server {@link SslContext}. Its session cache lets a returning
+ * client resume the session by ID, and with the stateless session tickets the client can resume it
+ * even after the session is evicted from the cache, so repeated short connections skip the full
+ * handshake.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+final class Tls {
+
+    /**
+     * Name of the TLS handler in the pipeline.
+     */
+    static final String HANDLER_NAME = "ssl";
+    /**
+     * JSSE property enabling the stateless session tickets (Java 13+).
+     */
+    private static final String SESSION_TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+
+    private Tls() {
+    }
+
+    /**
+     * Creates the server TLS context.
+     *
+     * @param keyStore         PKCS12 or JKS (if the file name ends with {@code .jks}) key store with the server
+     *                         private key and certificate chain
+     * @param password         key store and private key password
+     * @param sessionCacheSize maximum number of cached sessions
+     * @param sessionTimeout   session timeout in seconds
+     * @return the TLS context
+     * @throws IOException              if the key store could not be read
+     * @throws GeneralSecurityException if the key store is not valid
+     */
+    static SslContext serverContext(File keyStore, char[] password, long sessionCacheSize, long sessionTimeout)
+        throws IOException, GeneralSecurityException {
+        // Read once by the JSSE, an explicit system property wins
+        if (System.getProperty(SESSION_TICKETS) == null) {
+            System.setProperty(SESSION_TICKETS, "true");
+        }
+        final KeyStore store = KeyStore.getInstance(keyStore.getName().endsWith(".jks") ? "JKS" : "PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            store.load(in, password);
+        }
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+            KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(store, password);
+        return SslContextBuilder.forServer(keyManagerFactory)
+            .sslProvider(SslProvider.JDK)
+            .sessionCacheSize(sessionCacheSize)
+            .sessionTimeout(sessionTimeout)
+            .build();
+    }
+
+    /**
+     * Creates a TLS handler of a client connection.
+     *
+     * @param context   server TLS context
+     * @param allocator buffer allocator
+     * @param startTls  {@code true} if the next response is the last plain text one, e.g. the response
+     *                  to {@code STARTTLS}
+     * @return the TLS handler
+     */
+    static SslHandler newHandler(SslContext context, ByteBufAllocator allocator, boolean startTls) {
+        return new SslHandler(context.newEngine(allocator), startTls);
+    }
+
+    /**
+     * Upgrades a plain text session to TLS. Must be called from the event loop before the response
+     * to {@code STARTTLS} or {@code STLS} is written. The caller must discard the plain text input
+     * received after the command, a client must not pipeline anything after it.
+     *
+     * @param channel client channel
+     * @param context server TLS context
+     */
+    static void start(Channel channel, SslContext context) {
+        channel.pipeline().addFirst(HANDLER_NAME, newHandler(context, channel.alloc(), true));
+    }
+
+    /**
+     * Tests if the session is encrypted or being upgraded to TLS.
+     *
+     * @param pipeline client channel pipeline
+     * @return {@code true} if the pipeline has the TLS handler
+     */
+    static boolean isActive(ChannelPipeline pipeline) {
+        return pipeline.get(HANDLER_NAME) != null;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Network transport of the servers.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public enum Transport {
+
+    /**
+     * Java NIO transport available on all platforms.
+     */
+    NIO {
+        @Override
+        EventLoopGroup newEventLoopGroup(String namePrefix, int threads) {
+            return new DaemonEventLoopGroup(namePrefix, threads);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+    },
+
+    /**
+     * Native epoll transport available on Linux. Supports {@code SO_REUSEPORT}, so several
+     * listening sockets can accept connections on the same port.
+     */
+    EPOLL {
+        @Override
+        EventLoopGroup newEventLoopGroup(String namePrefix, int threads) {
+            return new EpollEventLoopGroup(threads, new DaemonThreadFactory(namePrefix));
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    /**
+     * Selects the transport.
+     *
+     * @param nativeTransport {@code true} to use the native transport if it is available
+     * @return the native transport if requested and available or NIO otherwise
+     */
+    public static Transport select(boolean nativeTransport) {
+        if (nativeTransport) {
+            if (Epoll.isAvailable()) {
+                logger.info("Using native epoll transport");
+                return EPOLL;
+            }
+            logger.warn("Native transport is not available, falling back to NIO: {}",
+                Epoll.unavailabilityCause().getMessage());
+        }
+        return NIO;
+    }
+
+    /**
+     * Creates an event loop group with daemon threads.
+     *
+     * @param namePrefix threads name prefix
+     * @param threads    number of threads or 0 for the Netty default
+     * @return the event loop group
+     */
+    abstract EventLoopGroup newEventLoopGroup(String namePrefix, int threads);
+
+    /**
+     * Gets the listening socket channel class.
+     *
+     * @return the server channel class
+     */
+    abstract Class<? extends ServerChannel> serverChannelClass();
+}
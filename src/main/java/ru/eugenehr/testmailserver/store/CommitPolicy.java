@@ -0,0 +1,133 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes the delivered message files durable according to the {@link Durability} mode.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+class CommitPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommitPolicy.class);
+
+    private final Sync sync;
+    private Durability durability = Durability.NONE;
+    private GroupCommit groupCommit;
+
+    /**
+     * Creates a commit policy syncing the message files and their directories.
+     */
+    CommitPolicy() {
+        this(GroupCommit::sync);
+    }
+
+    /**
+     * Creates a commit policy.
+     *
+     * @param sync syncs the files of the delivered messages
+     */
+    CommitPolicy(Sync sync) {
+        this.sync = sync;
+    }
+
+    synchronized Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Sets the durability of delivered messages.
+     *
+     * @param durability  durability mode
+     * @param interval    maximum time in milliseconds a delivery waits for the group commit
+     * @param maxMessages maximum number of messages synced by the group commit at once
+     */
+    synchronized void setDurability(Durability durability, long interval, int maxMessages) {
+        logger.info("Using '{}' durability of messages", durability.name().toLowerCase());
+        if (groupCommit != null) {
+            groupCommit.shutdown();
+            groupCommit = null;
+        }
+        if (durability == Durability.GROUP_COMMIT) {
+            groupCommit = new GroupCommit(interval, maxMessages, sync);
+        }
+        this.durability = durability;
+    }
+
+    /**
+     * Makes the delivered message durable according to the durability mode.
+     *
+     * @param files the message files
+     * @return the future completed when the message is safe to acknowledge
+     */
+    CompletableFuture<Void> commit(List<File> files) {
+        final GroupCommit groupCommit;
+        final Durability durability;
+        synchronized (this) {
+            groupCommit = this.groupCommit;
+            durability = this.durability;
+        }
+        if (groupCommit != null) {
+            return groupCommit.add(files);
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (durability == Durability.FSYNC) {
+            try {
+                sync.sync(files);
+            } catch (IOException ex) {
+                logger.error("Could not sync files {}: {}", files, ex.getMessage());
+                future.completeExceptionally(ex);
+                return future;
+            }
+        }
+        future.complete(null);
+        return future;
+    }
+
+    /**
+     * Syncs the pending messages and stops the group commit.
+     */
+    synchronized void shutdown() {
+        if (groupCommit != null) {
+            groupCommit.shutdown();
+            groupCommit = null;
+        }
+    }
+
+    /**
+     * Sync of the files of the delivered messages.
+     */
+    interface Sync {
+
+        /**
+         * Syncs the files to the disk.
+         *
+         * @param files files to sync
+         * @throws IOException if a file could not be synced
+         */
+        void sync(Collection<File> files) throws IOException;
+    }
+}
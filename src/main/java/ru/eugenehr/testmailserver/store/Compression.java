@@ -0,0 +1,70 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompression of the stored messages.
+ *
+ * <p>The messages spooled with the compression enabled are stored in the GZIP format and are told
+ * from the plain messages by the GZIP magic number. A plain message cannot start with it as the
+ * message headers are text, so the stores may hold both kinds and the compression can be turned on
+ * and off without converting the stored messages.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+final class Compression {
+
+    private static final int MAGIC_LENGTH = 2;
+    private static final int BUFFER_SIZE = 8192;
+
+    private Compression() {
+    }
+
+    /**
+     * Wraps a stored message content to decompress it while it is read.
+     *
+     * @param in stored content or {@code null}
+     * @return the decompressing stream, the stored content if it is not compressed or {@code null}
+     * @throws IOException if the content could not be read
+     */
+    static InputStream decompress(InputStream in) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        final PushbackInputStream pushback = new PushbackInputStream(in, MAGIC_LENGTH);
+        try {
+            final byte[] magic = new byte[MAGIC_LENGTH];
+            int length = 0;
+            int read;
+            while (length < MAGIC_LENGTH && (read = pushback.read(magic, length, MAGIC_LENGTH - length)) > 0) {
+                length += read;
+            }
+            pushback.unread(magic, 0, length);
+            final boolean compressed = length == MAGIC_LENGTH
+                && (magic[0] & 0xff | (magic[1] & 0xff) << 8) == GZIPInputStream.GZIP_MAGIC;
+            return compressed ? new GZIPInputStream(pushback, BUFFER_SIZE) : pushback;
+        } catch (IOException ex) {
+            pushback.close();
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.eugenehr.testmailserver.MessageMetadata;
+import ru.eugenehr.testmailserver.MessageSpool;
+
+/**
+ * Mail store keeping every mailbox in a directory and every message in a {@code <ID>.msg} file.
+ *
+ * <p>The mailboxes and their messages are indexed in memory. The index is built from the root
+ * directory once and then updated by {@link #deliver(Set, String, MessageSpool)} and
+ * {@link #deleteMessage(String, String)}, so the lookups do not touch the file system. The message
+ * files added or removed by other programs are picked up by the {@link MailboxWatcher}. A delivered
+ * message is written to a {@code <ID>.tmp} file and renamed when complete, so the watcher never
+ * sees it partially written.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class FileMailStore implements MailStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileMailStore.class);
+
+    private static final String MESSAGE_EXTENSION = ".msg";
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final String METADATA_JOURNAL = ".metadata";
+
+    private final File root;
+    /**
+     * Mailbox name to the message IDs sorted by name and their sizes. Only the mailboxes with
+     * messages are present.
+     */
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, Long>> index;
+    private final MetadataCache metadata;
+    private final MailStoreNotifier notifier = new MailStoreNotifier();
+    private MailboxWatcher watcher;
+    private final CommitPolicy commitPolicy = new CommitPolicy();
+
+    /**
+     * Creates a mail store.
+     *
+     * @param root path to root directory to store user mailboxes
+     */
+    public FileMailStore(File root) {
+        logger.info("Using '{}' directory to store user mailboxes", root.getAbsolutePath());
+        this.root = root;
+        this.index = buildIndex(root);
+        this.metadata = root.isDirectory()
+            ? new MetadataCache(new File(root, METADATA_JOURNAL), this::getStoredSize) : new MetadataCache();
+        this.watcher = watch(root);
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public Durability getDurability() {
+        return commitPolicy.getDurability();
+    }
+
+    /**
+     * Sets the durability of delivered messages.
+     *
+     * @param durability  durability mode
+     * @param interval    maximum time in milliseconds a delivery waits for the group commit
+     * @param maxMessages maximum number of messages synced by the group commit at once
+     */
+    public void setDurability(Durability durability, long interval, int maxMessages) {
+        commitPolicy.setDurability(durability, interval, maxMessages);
+    }
+
+    @Override
+    public Set<String> getMailboxes() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    @Override
+    public Set<String> getMessages(String mailbox) {
+        final ConcurrentSkipListMap<String, Long> messages = index.get(mailbox);
+        return messages == null ? Collections.emptySet() : Collections.unmodifiableSet(messages.keySet());
+    }
+
+    @Override
+    public long getMessageSize(String mailbox, String message) {
+        return metadata.getSize(mailbox, message, getStoredSize(mailbox, message),
+            () -> openMessage(mailbox, message));
+    }
+
+    @Override
+    public long getStoredSize(String mailbox, String message) {
+        final ConcurrentSkipListMap<String, Long> messages = index.get(mailbox);
+        final Long size = messages == null ? null : messages.get(message);
+        return size == null ? 0 : size;
+    }
+
+    @Override
+    public InputStream openMessage(String mailbox, String message) throws IOException {
+        try {
+            return Compression.decompress(new FileInputStream(getFile(mailbox, message)));
+        } catch (FileNotFoundException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public MessageMetadata getMetadata(String mailbox, String message) throws IOException {
+        return metadata.get(mailbox, message, getStoredSize(mailbox, message), () -> openMessage(mailbox, message));
+    }
+
+    @Override
+    public CompletableFuture<Void> deliver(Set<String> mailboxes, String message, MessageSpool content)
+        throws IOException {
+        // The message is written once, other mailboxes get hard links to the same file
+        final List<File> files = new ArrayList<>(mailboxes.size());
+        File source = null;
+        for (String mailbox : mailboxes) {
+            final File dest = getFile(mailbox, message);
+            if (source == null || !linkFile(source, dest)) {
+                writeFile(content, dest);
+                source = dest;
+            }
+            files.add(dest);
+        }
+
+        final long length = content.length();
+        if (content.getMetadata() != null) {
+            mailboxes.forEach(mailbox -> metadata.put(mailbox, message, length, content.getMetadata()));
+        }
+        // The watcher may have indexed the new files already
+        mailboxes.forEach(mailbox -> update(mailbox, message, length));
+
+        return commitPolicy.commit(files);
+    }
+
+    @Override
+    public boolean deleteMessage(String mailbox, String message) {
+        final File file = getFile(mailbox, message);
+        final boolean deleted = file.delete();
+        if (deleted || !file.exists()) {
+            final Long size = unindex(mailbox, message);
+            if (size != null) {
+                notifier.removed(mailbox, message, size);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public void setListener(MailStoreListener listener) {
+        notifier.setListener(listener);
+    }
+
+    /**
+     * Syncs the pending messages and stops the group commit and the mailbox watcher.
+     */
+    @Override
+    public synchronized void close() {
+        commitPolicy.shutdown();
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+        metadata.close();
+    }
+
+    /**
+     * Re-checks a message file changed by another program and updates the index.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     */
+    void syncMessage(String mailbox, String message) {
+        final File file = getFile(mailbox, message);
+        if (file.isFile()) {
+            update(mailbox, message, file.length());
+        } else {
+            final Long size = unindex(mailbox, message);
+            if (size != null) {
+                notifier.removed(mailbox, message, size);
+            }
+        }
+    }
+
+    /**
+     * Reconciles the index of a mailbox with its directory.
+     *
+     * @param mailbox mailbox
+     */
+    void syncMailbox(String mailbox) {
+        final Set<String> messages = new HashSet<>();
+        final File[] files = new File(root, mailbox).listFiles((dir, name) -> isMessage(name));
+        if (files != null) {
+            for (File file : files) {
+                messages.add(messageId(file.getName()));
+            }
+        }
+        final ConcurrentSkipListMap<String, Long> indexed = index.get(mailbox);
+        if (indexed != null) {
+            indexed.keySet().stream().filter(message -> !messages.contains(message)).forEach(messages::add);
+        }
+        messages.forEach(message -> syncMessage(mailbox, message));
+    }
+
+    /**
+     * Reconciles the index of all mailboxes with the root directory.
+     */
+    void syncAll() {
+        final Set<String> mailboxes = new HashSet<>(index.keySet());
+        final File[] dirs = root.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                mailboxes.add(dir.getName());
+            }
+        }
+        mailboxes.forEach(this::syncMailbox);
+    }
+
+    /**
+     * Tests if the file is a message file.
+     *
+     * @param fileName file name
+     * @return {@code true} if the file name has the message extension
+     */
+    static boolean isMessage(String fileName) {
+        return fileName.endsWith(MESSAGE_EXTENSION);
+    }
+
+    /**
+     * Gets the message ID of a message file.
+     *
+     * @param fileName message file name
+     * @return the file name without the message extension
+     */
+    static String messageId(String fileName) {
+        return fileName.substring(0, fileName.length() - MESSAGE_EXTENSION.length());
+    }
+
+    private File getFile(String mailbox, String message) {
+        return new File(new File(root, mailbox), message + MESSAGE_EXTENSION);
+    }
+
+    /**
+     * Adds a message to the index or updates its size.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param size    message size in bytes
+     * @return the previous size of the message or {@code null} if the message has been added
+     */
+    private Long index(String mailbox, String message, long size) {
+        final Long[] previous = new Long[1];
+        // Atomic with the removal of the emptied mailbox by unindex
+        index.compute(mailbox, (key, messages) -> {
+            final ConcurrentSkipListMap<String, Long> result = messages == null
+                ? new ConcurrentSkipListMap<>() : messages;
+            previous[0] = result.put(message, size);
+            return result;
+        });
+        return previous[0];
+    }
+
+    /**
+     * Removes a message from the index.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the size of the removed message or {@code null} if there is no such message
+     */
+    private Long unindex(String mailbox, String message) {
+        final Long[] removed = new Long[1];
+        index.computeIfPresent(mailbox, (key, messages) -> {
+            removed[0] = messages.remove(message);
+            return messages.isEmpty() ? null : messages;
+        });
+        if (removed[0] != null) {
+            metadata.remove(mailbox, message);
+        }
+        return removed[0];
+    }
+
+    /**
+     * Adds a message to the index or updates its size and notifies the listener.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param size    message size in bytes
+     */
+    private void update(String mailbox, String message, long size) {
+        final Long previous = index(mailbox, message, size);
+        if (previous == null) {
+            notifier.added(mailbox, message, size);
+        } else if (previous != size) {
+            // Rewritten by another program
+            notifier.removed(mailbox, message, previous);
+            notifier.added(mailbox, message, size);
+        }
+    }
+
+    /**
+     * Starts watching the root directory for the changes made by other programs.
+     *
+     * @param root path to root directory of the mailboxes
+     * @return the watcher or {@code null} if the directory could not be watched
+     */
+    private MailboxWatcher watch(File root) {
+        if (!root.isDirectory()) {
+            return null;
+        }
+        try {
+            return new MailboxWatcher(new MailboxWatcher.Target() {
+                @Override
+                public void syncFile(String mailbox, String folder, String fileName) {
+                    if (isMessage(fileName)) {
+                        syncMessage(mailbox, messageId(fileName));
+                    }
+                }
+
+                @Override
+                public void syncMailbox(String mailbox) {
+                    FileMailStore.this.syncMailbox(mailbox);
+                }
+
+                @Override
+                public void syncAll() {
+                    FileMailStore.this.syncAll();
+                }
+            }, root);
+        } catch (IOException ex) {
+            logger.warn("Could not watch directory '{}', external changes are ignored: {}",
+                root.getAbsolutePath(), ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Builds the index of the messages stored in the root directory.
+     *
+     * @param root path to root directory of the mailboxes
+     * @return the index
+     */
+    private static ConcurrentMap<String, ConcurrentSkipListMap<String, Long>> buildIndex(File root) {
+        final ConcurrentMap<String, ConcurrentSkipListMap<String, Long>> index = new ConcurrentHashMap<>();
+        final Path rootPath = root.toPath();
+        if (!root.isDirectory()) {
+            return index;
+        }
+        final long start = System.nanoTime();
+        try {
+            Files.walkFileTree(rootPath, EnumSet.noneOf(FileVisitOption.class), 2, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    final Path dir = file.getParent();
+                    final String name = file.getFileName().toString();
+                    if (!attrs.isRegularFile() || rootPath.equals(dir)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (isMessage(name)) {
+                        index.computeIfAbsent(dir.getFileName().toString(), key -> new ConcurrentSkipListMap<>())
+                            .put(messageId(name), attrs.size());
+                    } else if (name.endsWith(TMP_EXTENSION)) {
+                        // Left by a delivery interrupted by a crash
+                        try {
+                            Files.deleteIfExists(file);
+                        } catch (IOException ex) {
+                            logger.warn("Could not delete file '{}': {}", file, ex.getMessage());
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    logger.warn("Could not read '{}': {}", file, ex.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        logger.info("Indexed {} mailboxes in {} ms", index.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return index;
+    }
+
+    /**
+     * Creates a hard link to the message file. The file content is removed when the last link
+     * is deleted.
+     *
+     * @param source existing message file
+     * @param dest   link to create
+     * @return {@code true} if the link has been created or {@code false} if the file system does
+     *     not support hard links and the message must be copied
+     */
+    private boolean linkFile(File source, File dest) {
+        try {
+            dest.getParentFile().mkdirs();
+            Files.deleteIfExists(dest.toPath());
+            Files.createLink(dest.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            logger.debug("Could not link file '{}' to '{}': {}", dest, source, ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes the message to a temporary file and renames it to the message file.
+     *
+     * @param message message content
+     * @param dest    message file
+     * @throws IOException if the message could not be written
+     */
+    private void writeFile(MessageSpool message, File dest) throws IOException {
+        final File tmp = new File(dest.getParentFile(), messageId(dest.getName()) + TMP_EXTENSION);
+        try {
+            dest.getParentFile().mkdirs();
+            message.writeTo(tmp);
+            try {
+                Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            logger.error("Could not write file '{}': {}", dest, ex.getMessage());
+            Files.deleteIfExists(tmp.toPath());
+            throw ex;
+        }
+    }
+}
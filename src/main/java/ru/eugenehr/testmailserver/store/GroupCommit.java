@@ -0,0 +1,188 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Syncs the delivered message files to the disk in batches.
+ *
+ * <p>The files of concurrent deliveries are collected for the commit interval or until the batch
+ * reaches the maximum number of messages. Then all of them and their directories are synced at
+ * once and the deliveries are completed.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+class GroupCommit {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommit.class);
+
+    private final long interval;
+    private final int maxMessages;
+    private final CommitPolicy.Sync sync;
+    private final Thread thread;
+    // Guarded by this
+    private List<Commit> pending = new ArrayList<>();
+    private boolean shutdown;
+
+    /**
+     * Creates and starts the group commit.
+     *
+     * @param interval    maximum time in milliseconds a delivery waits for the batch
+     * @param maxMessages maximum number of messages in the batch
+     * @param sync        syncs the files of the batch
+     */
+    GroupCommit(long interval, int maxMessages, CommitPolicy.Sync sync) {
+        this.interval = interval;
+        this.maxMessages = maxMessages;
+        this.sync = sync;
+        this.thread = new Thread(this::run);
+        thread.setName("group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds the message files to the next batch.
+     *
+     * @param files message files
+     * @return the future completed when the files are synced
+     */
+    synchronized CompletableFuture<Void> add(Collection<File> files) {
+        final Commit commit = new Commit(files);
+        if (shutdown) {
+            commit.future.completeExceptionally(new IllegalStateException("Group commit is shut down"));
+        } else {
+            pending.add(commit);
+            notifyAll();
+        }
+        return commit.future;
+    }
+
+    /**
+     * Syncs the pending batch and stops the commit thread.
+     */
+    void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Syncs the files and their directories to the disk.
+     *
+     * @param files files to sync
+     * @throws IOException if a file could not be synced
+     */
+    static void sync(Collection<File> files) throws IOException {
+        final Set<File> dirs = new LinkedHashSet<>();
+        for (File file : files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            dirs.add(file.getAbsoluteFile().getParentFile());
+        }
+        // The new directory entries must survive a crash too
+        dirs.forEach(GroupCommit::syncDirectory);
+    }
+
+    /**
+     * Syncs the entries of a directory to the disk.
+     *
+     * @param dir directory to sync
+     */
+    static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // Some platforms can not open a directory
+            logger.debug("Could not sync directory '{}': {}", dir, ex.getMessage());
+        }
+    }
+
+    private void run() {
+        while (true) {
+            final List<Commit> batch;
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() && !shutdown) {
+                        wait();
+                    }
+                    final long deadline = System.currentTimeMillis() + interval;
+                    long remaining = interval;
+                    while (pending.size() < maxMessages && remaining > 0 && !shutdown) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException ex) {
+                    shutdown = true;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            commit(batch);
+        }
+    }
+
+    private void commit(List<Commit> batch) {
+        final Set<File> files = new LinkedHashSet<>();
+        batch.forEach(commit -> files.addAll(commit.files));
+        try {
+            sync.sync(files);
+            logger.debug("{} messages synced", batch.size());
+            batch.forEach(commit -> commit.future.complete(null));
+        } catch (IOException ex) {
+            logger.error("Could not sync {} messages: {}", batch.size(), ex.getMessage());
+            batch.forEach(commit -> commit.future.completeExceptionally(ex));
+        }
+    }
+
+    /**
+     * The files of a delivered message.
+     */
+    private static class Commit {
+
+        private final Collection<File> files;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Commit(Collection<File> files) {
+            this.files = files;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import ru.eugenehr.testmailserver.MessageMetadata;
+import ru.eugenehr.testmailserver.MessageSpool;
+import ru.eugenehr.testmailserver.event.MailboxEvent;
+
+/**
+ * Storage of the user mailboxes.
+ *
+ * <p>A mailbox holds messages identified by the unique message IDs. The implementations must be
+ * thread-safe. For every added and removed message, including the changes not made through the
+ * store, they notify the {@link MailStoreListener} and post a {@link MailboxEvent} to the UI event
+ * bus.
+ *
+ * <p>The message content may be stored compressed, see {@link MessageSpool}. The stores report the
+ * sizes of the decompressed content and decompress the content while it is read.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public interface MailStore {
+
+    /**
+     * Lookup for all mailboxes that containing mails.
+     *
+     * @return the live read-only view of the mailboxes
+     */
+    Set<String> getMailboxes();
+
+    /**
+     * Lookup for all messages in the given mailbox.
+     *
+     * @param mailbox mailbox to lookup
+     * @return the live read-only view of the message IDs sorted by arrival
+     */
+    Set<String> getMessages(String mailbox);
+
+    /**
+     * Gets the size of a message.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the size in bytes of the decompressed content or 0 if there is no such message
+     */
+    long getMessageSize(String mailbox, String message);
+
+    /**
+     * Gets the size of the stored message content.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the size in bytes, of the compressed content if the message is stored compressed, or
+     *     0 if there is no such message
+     */
+    default long getStoredSize(String mailbox, String message) {
+        return getMessageSize(mailbox, message);
+    }
+
+    /**
+     * Opens a message for reading.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the decompressed message content, to be closed by the caller, or {@code null} if there
+     *     is no such message
+     * @throws IOException if the message could not be read
+     */
+    InputStream openMessage(String mailbox, String message) throws IOException;
+
+    /**
+     * Gets the metadata of a message. The stores keep the metadata computed at the delivery, this
+     * default implementation reads the whole message every time.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the metadata or {@code null} if there is no such message
+     * @throws IOException if the message could not be read
+     */
+    default MessageMetadata getMetadata(String mailbox, String message) throws IOException {
+        try (InputStream in = openMessage(mailbox, message)) {
+            return in == null ? null : MessageMetadata.parse(in);
+        }
+    }
+
+    /**
+     * Delivers a message to the mailboxes.
+     *
+     * @param mailboxes destination mailboxes
+     * @param message   message ID
+     * @param content   message content
+     * @return the future completed when the message is safe to acknowledge
+     * @throws IOException if the message could not be stored
+     */
+    CompletableFuture<Void> deliver(Set<String> mailboxes, String message, MessageSpool content) throws IOException;
+
+    /**
+     * Marks a message as seen by the user. The stores not tracking the seen state ignore it.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     */
+    default void markSeen(String mailbox, String message) {
+    }
+
+    /**
+     * Deletes a message from the mailbox.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return {@code true} if the message has been deleted
+     */
+    boolean deleteMessage(String mailbox, String message);
+
+    /**
+     * Sets the listener of the added and removed messages.
+     *
+     * @param listener listener or {@code null} to remove it
+     */
+    void setListener(MailStoreListener listener);
+
+    /**
+     * Completes the pending deliveries and releases the resources of the store.
+     */
+    void close();
+}
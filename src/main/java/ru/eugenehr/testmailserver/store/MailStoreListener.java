@@ -0,0 +1,47 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+/**
+ * Listener of the messages added to and removed from a {@link MailStore}.
+ *
+ * <p>The listener is called by the thread that changed the store, it must be thread-safe and must
+ * not block. The sizes are the stored sizes, of the compressed content if the message is stored
+ * compressed.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public interface MailStoreListener {
+
+    /**
+     * Called when a message is added to a mailbox.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param size    message size in bytes
+     */
+    void messageAdded(String mailbox, String message, long size);
+
+    /**
+     * Called when a message is removed from a mailbox.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param size    size in bytes of the removed message
+     */
+    void messageRemoved(String mailbox, String message, long size);
+}
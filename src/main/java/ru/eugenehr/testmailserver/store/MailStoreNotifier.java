@@ -0,0 +1,67 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import ru.eugenehr.testmailserver.event.MailboxEvent;
+import ru.eugenehr.testmailserver.event.MailboxEvent.Type;
+import ru.eugenehr.testmailserver.ui.UIEventBus;
+
+/**
+ * Notifies the {@link MailStoreListener} and the UI of the changes of a mail store.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+class MailStoreNotifier {
+
+    private volatile MailStoreListener listener;
+
+    void setListener(MailStoreListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Notifies of a message added to a mailbox.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param size    message size in bytes
+     */
+    void added(String mailbox, String message, long size) {
+        final MailStoreListener listener = this.listener;
+        if (listener != null) {
+            listener.messageAdded(mailbox, message, size);
+        }
+        // Notify UI
+        UIEventBus.post(new MailboxEvent(mailbox, message, Type.CREATED));
+    }
+
+    /**
+     * Notifies of a message removed from a mailbox.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param size    size in bytes of the removed message
+     */
+    void removed(String mailbox, String message, long size) {
+        final MailStoreListener listener = this.listener;
+        if (listener != null) {
+            listener.messageRemoved(mailbox, message, size);
+        }
+        // Notify UI
+        UIEventBus.post(new MailboxEvent(mailbox, message, Type.DELETED));
+    }
+}
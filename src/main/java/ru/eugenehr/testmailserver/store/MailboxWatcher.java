@@ -0,0 +1,214 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the index of a directory based mail store in sync with the changes of the mailboxes
+ * directory made by other programs.
+ *
+ * <p>The root directory, every mailbox directory and its message folders, if the store has any,
+ * are watched with a {@link WatchService}. A changed message file is re-checked on the disk, a new
+ * mailbox directory is scanned once it is watched. If the watch service overflows and loses events,
+ * all the mailboxes are reconciled with the disk once the burst of changes calms down.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+class MailboxWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(MailboxWatcher.class);
+    /**
+     * Delay in milliseconds of the reconciliation after the last lost events.
+     */
+    private static final long RECONCILE_DELAY = 1000;
+
+    private final Target store;
+    private final Path root;
+    private final List<String> folders;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Creates and starts the watcher.
+     *
+     * @param store   mail store to update
+     * @param root    root directory of the mailboxes
+     * @param folders subdirectories of a mailbox holding the messages, none if the messages are
+     *                stored in the mailbox directory itself
+     * @throws IOException if the directories could not be watched
+     */
+    MailboxWatcher(Target store, File root, String... folders) throws IOException {
+        this.store = store;
+        this.root = root.toPath();
+        this.folders = Arrays.asList(folders);
+        this.watchService = this.root.getFileSystem().newWatchService();
+        try {
+            watchAll();
+        } catch (IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        this.thread = new Thread(this::run);
+        thread.setName("mailbox-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the directories.
+     */
+    void close() {
+        try {
+            watchService.close();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (IOException ex) {
+            logger.warn("Could not close watch service: {}", ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        // Time of the pending reconciliation or 0
+        long reconcileAt = 0;
+        try {
+            while (true) {
+                final WatchKey key = reconcileAt == 0 ? watchService.take()
+                    : watchService.poll(Math.max(1, reconcileAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (reconcileAt != 0 && System.currentTimeMillis() >= reconcileAt) {
+                    logger.info("Mailbox watch events lost, reconciling mailboxes with '{}'", root);
+                    reconcileAt = 0;
+                    watchAll();
+                    store.syncAll();
+                }
+                if (key == null) {
+                    continue;
+                }
+                final Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        reconcileAt = System.currentTimeMillis() + RECONCILE_DELAY;
+                        continue;
+                    }
+                    final String name = event.context().toString();
+                    if (root.equals(dir)) {
+                        // A mailbox directory is created or removed
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            watchMailbox(root.resolve(name));
+                        }
+                        store.syncMailbox(name);
+                    } else if (folders.isEmpty()) {
+                        store.syncFile(dir.getFileName().toString(), null, name);
+                    } else if (root.equals(dir.getParent())) {
+                        // A message folder is created or removed
+                        if (folders.contains(name)) {
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                watch(dir.resolve(name));
+                            }
+                            store.syncMailbox(dir.getFileName().toString());
+                        }
+                    } else {
+                        store.syncFile(dir.getParent().getFileName().toString(), dir.getFileName().toString(), name);
+                    }
+                }
+                if (!key.reset() && !root.equals(dir)) {
+                    // The mailbox directory or a message folder is removed
+                    store.syncMailbox((root.equals(dir.getParent()) ? dir : dir.getParent()).getFileName().toString());
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ex) {
+            // Closed
+        } catch (IOException ex) {
+            logger.error("Mailbox watcher stopped: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Watches the root directory and all mailbox directories.
+     */
+    private void watchAll() throws IOException {
+        root.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        final File[] dirs = root.toFile().listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                watchMailbox(dir.toPath());
+            }
+        }
+    }
+
+    /**
+     * Watches a mailbox directory and its message folders.
+     */
+    private void watchMailbox(Path dir) {
+        watch(dir);
+        folders.forEach(folder -> watch(dir.resolve(folder)));
+    }
+
+    /**
+     * Watches a directory. Registering a directory twice is harmless.
+     */
+    private void watch(Path dir) {
+        try {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            // Not a directory or removed already
+            logger.debug("Could not watch '{}': {}", dir, ex.getMessage());
+        }
+    }
+
+    /**
+     * Mail store updated by the watcher.
+     */
+    interface Target {
+
+        /**
+         * Re-checks a file changed by another program and updates the index.
+         *
+         * @param mailbox  mailbox
+         * @param folder   message folder of the mailbox or {@code null} if the store has no folders
+         * @param fileName name of the changed file
+         */
+        void syncFile(String mailbox, String folder, String fileName);
+
+        /**
+         * Reconciles the index of a mailbox with its directory.
+         *
+         * @param mailbox mailbox
+         */
+        void syncMailbox(String mailbox);
+
+        /**
+         * Reconciles the index of all mailboxes with the root directory.
+         */
+        void syncAll();
+    }
+}
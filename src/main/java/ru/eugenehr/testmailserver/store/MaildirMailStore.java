@@ -0,0 +1,625 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.eugenehr.testmailserver.MessageMetadata;
+import ru.eugenehr.testmailserver.MessageSpool;
+
+/**
+ * Mail store keeping every mailbox in a <a href="https://cr.yp.to/proto/maildir.html">Maildir</a>
+ * directory, so the standard Maildir tools can read and change the messages in place.
+ *
+ * <p>A message is written to the {@code tmp} folder of the mailbox and then atomically linked or
+ * renamed into the {@code new} folder, so the readers never see a partially written message. The
+ * message ID is the unique Maildir file name. A message marked as seen is moved to the {@code cur}
+ * folder and gets the {@code S} flag in the {@code :2,} info suffix of its file name.
+ *
+ * <p>The messages are indexed in memory like in the {@link FileMailStore}, the files changed by
+ * other programs are picked up by the {@link MailboxWatcher}.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class MaildirMailStore implements MailStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(MaildirMailStore.class);
+
+    private static final String TMP = "tmp";
+    private static final String NEW = "new";
+    private static final String CUR = "cur";
+    private static final String INFO = ":2,";
+    private static final char SEEN = 'S';
+    private static final String METADATA_JOURNAL = ".metadata";
+    /**
+     * Age of the stale files in the {@code tmp} folders left by the interrupted deliveries.
+     */
+    private static final long STALE_TMP_AGE = TimeUnit.HOURS.toMillis(36);
+
+    private final File root;
+    /**
+     * Mailbox name to the message IDs sorted by name and their files. Only the mailboxes with
+     * messages are present.
+     */
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, Entry>> index = new ConcurrentHashMap<>();
+    private final CommitPolicy commitPolicy = new CommitPolicy();
+    private final MetadataCache metadata;
+    private final MailStoreNotifier notifier = new MailStoreNotifier();
+    /**
+     * Guards the moves and deletions of the message files with their index updates against the
+     * watcher, so it does not index a file seen before the store moved it.
+     */
+    private final Object fileLock = new Object();
+    private MailboxWatcher watcher;
+
+    /**
+     * Creates a mail store.
+     *
+     * @param root path to root directory to store user mailboxes
+     */
+    public MaildirMailStore(File root) {
+        logger.info("Using '{}' directory to store user Maildir mailboxes", root.getAbsolutePath());
+        this.root = root;
+        final long start = System.nanoTime();
+        final File[] dirs = root.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                removeStaleFiles(new File(dir, TMP));
+                final Map<String, Entry> messages = scan(dir.getName());
+                if (!messages.isEmpty()) {
+                    index.put(dir.getName(), new ConcurrentSkipListMap<>(messages));
+                }
+            }
+        }
+        logger.info("Indexed {} mailboxes in {} ms", index.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        this.metadata = root.isDirectory()
+            ? new MetadataCache(new File(root, METADATA_JOURNAL), this::getStoredSize) : new MetadataCache();
+        this.watcher = watch(root);
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public Durability getDurability() {
+        return commitPolicy.getDurability();
+    }
+
+    /**
+     * Sets the durability of delivered messages.
+     *
+     * @param durability  durability mode
+     * @param interval    maximum time in milliseconds a delivery waits for the group commit
+     * @param maxMessages maximum number of messages synced by the group commit at once
+     */
+    public void setDurability(Durability durability, long interval, int maxMessages) {
+        commitPolicy.setDurability(durability, interval, maxMessages);
+    }
+
+    @Override
+    public Set<String> getMailboxes() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    @Override
+    public Set<String> getMessages(String mailbox) {
+        final ConcurrentSkipListMap<String, Entry> messages = index.get(mailbox);
+        return messages == null ? Collections.emptySet() : Collections.unmodifiableSet(messages.keySet());
+    }
+
+    @Override
+    public long getMessageSize(String mailbox, String message) {
+        return metadata.getSize(mailbox, message, getStoredSize(mailbox, message),
+            () -> openMessage(mailbox, message));
+    }
+
+    @Override
+    public long getStoredSize(String mailbox, String message) {
+        final Entry entry = getEntry(mailbox, message);
+        return entry == null ? 0 : entry.size;
+    }
+
+    @Override
+    public InputStream openMessage(String mailbox, String message) throws IOException {
+        Entry entry = getEntry(mailbox, message);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return Compression.decompress(new FileInputStream(getFile(mailbox, entry)));
+        } catch (FileNotFoundException ex) {
+            // Moved by another program, the watcher has not updated the index yet
+            entry = locate(mailbox, message);
+            return entry == null ? null : Compression.decompress(new FileInputStream(getFile(mailbox, entry)));
+        }
+    }
+
+    @Override
+    public MessageMetadata getMetadata(String mailbox, String message) throws IOException {
+        return metadata.get(mailbox, message, getStoredSize(mailbox, message), () -> openMessage(mailbox, message));
+    }
+
+    /**
+     * Tests if the message has been seen.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return {@code true} if the message has the seen flag
+     */
+    public boolean isSeen(String mailbox, String message) {
+        final Entry entry = getEntry(mailbox, message);
+        return entry != null && entry.isSeen();
+    }
+
+    @Override
+    public void markSeen(String mailbox, String message) {
+        final ConcurrentSkipListMap<String, Entry> messages = index.get(mailbox);
+        final Entry entry = messages == null ? null : messages.get(message);
+        if (entry == null || entry.isSeen()) {
+            return;
+        }
+        final String info = entry.info();
+        final StringBuilder flags = new StringBuilder(info == null ? "" : info).append(SEEN);
+        final char[] sorted = flags.toString().toCharArray();
+        Arrays.sort(sorted);
+        final Entry seen = new Entry(CUR, message + INFO + new String(sorted), entry.size);
+        synchronized (fileLock) {
+            // The index is updated first, so the watcher ignores the removal of the old file
+            if (!messages.replace(message, entry, seen)) {
+                return;
+            }
+            try {
+                final File dest = getFile(mailbox, seen);
+                dest.getParentFile().mkdirs();
+                Files.move(getFile(mailbox, entry).toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                logger.warn("Could not mark message {} in mailbox {} as seen: {}", message, mailbox, ex.getMessage());
+                messages.replace(message, seen, entry);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> deliver(Set<String> mailboxes, String message, MessageSpool content)
+        throws IOException {
+        // The message is written once, other mailboxes get hard links to the same file
+        final List<File> files = new ArrayList<>(mailboxes.size());
+        final Entry entry = new Entry(NEW, message, content.length());
+        File tmp = null;
+        try {
+            for (String mailbox : mailboxes) {
+                final File dest = getFile(mailbox, entry);
+                if (!index.containsKey(mailbox)) {
+                    // The Maildir tools recognize a mailbox by all three folders
+                    for (String folder : new String[] {TMP, NEW, CUR}) {
+                        new File(new File(root, mailbox), folder).mkdirs();
+                    }
+                }
+                if (tmp == null) {
+                    tmp = writeTmp(mailbox, message, content);
+                }
+                if (!linkFile(tmp, dest)) {
+                    // The next mailbox gets its own copy
+                    moveFile(tmp, dest);
+                    tmp = null;
+                }
+                files.add(dest);
+            }
+        } finally {
+            if (tmp != null) {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        }
+
+        for (String mailbox : mailboxes) {
+            if (content.getMetadata() != null) {
+                metadata.put(mailbox, message, entry.size, content.getMetadata());
+            }
+            update(mailbox, message, entry);
+        }
+        return commitPolicy.commit(files);
+    }
+
+    @Override
+    public boolean deleteMessage(String mailbox, String message) {
+        synchronized (fileLock) {
+            Entry entry = getEntry(mailbox, message);
+            if (entry == null) {
+                return false;
+            }
+            boolean deleted = getFile(mailbox, entry).delete();
+            if (!deleted) {
+                // Moved by another program, the watcher has not updated the index yet
+                entry = locate(mailbox, message);
+                deleted = entry != null && getFile(mailbox, entry).delete();
+            }
+            remove(mailbox, message, null);
+            return deleted;
+        }
+    }
+
+    @Override
+    public void setListener(MailStoreListener listener) {
+        notifier.setListener(listener);
+    }
+
+    /**
+     * Syncs the pending messages and stops the group commit and the mailbox watcher.
+     */
+    @Override
+    public synchronized void close() {
+        commitPolicy.shutdown();
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+        metadata.close();
+    }
+
+    /**
+     * Re-checks a message file changed by another program and updates the index.
+     *
+     * @param mailbox  mailbox
+     * @param folder   {@code new} or {@code cur} folder
+     * @param fileName message file name
+     */
+    void syncFile(String mailbox, String folder, String fileName) {
+        if (fileName.startsWith(".")) {
+            return;
+        }
+        final Entry entry = new Entry(folder, fileName, 0);
+        final String message = entry.messageId();
+        final File file = getFile(mailbox, entry);
+        synchronized (fileLock) {
+            if (file.isFile()) {
+                update(mailbox, message, new Entry(folder, fileName, file.length()));
+            } else {
+                remove(mailbox, message, entry.path());
+            }
+        }
+    }
+
+    /**
+     * Reconciles the index of a mailbox with its directory.
+     *
+     * @param mailbox mailbox
+     */
+    void syncMailbox(String mailbox) {
+        synchronized (fileLock) {
+            final Map<String, Entry> messages = scan(mailbox);
+            messages.forEach((message, entry) -> update(mailbox, message, entry));
+            final ConcurrentSkipListMap<String, Entry> indexed = index.get(mailbox);
+            if (indexed != null) {
+                indexed.keySet().stream()
+                    .filter(message -> !messages.containsKey(message))
+                    .forEach(message -> remove(mailbox, message, null));
+            }
+        }
+    }
+
+    /**
+     * Reconciles the index of all mailboxes with the root directory.
+     */
+    void syncAll() {
+        final Set<String> mailboxes = new HashSet<>(index.keySet());
+        final File[] dirs = root.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                mailboxes.add(dir.getName());
+            }
+        }
+        mailboxes.forEach(this::syncMailbox);
+    }
+
+    private File getFile(String mailbox, Entry entry) {
+        return new File(new File(new File(root, mailbox), entry.folder), entry.fileName);
+    }
+
+    private Entry getEntry(String mailbox, String message) {
+        final ConcurrentSkipListMap<String, Entry> messages = index.get(mailbox);
+        return messages == null ? null : messages.get(message);
+    }
+
+    /**
+     * Adds a message to the index or updates its file.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param entry   message file
+     * @return the previous file of the message or {@code null} if the message has been added
+     */
+    private Entry index(String mailbox, String message, Entry entry) {
+        final Entry[] previous = new Entry[1];
+        // Atomic with the removal of the emptied mailbox by unindex
+        index.compute(mailbox, (key, messages) -> {
+            final ConcurrentSkipListMap<String, Entry> result = messages == null
+                ? new ConcurrentSkipListMap<>() : messages;
+            previous[0] = result.put(message, entry);
+            return result;
+        });
+        return previous[0];
+    }
+
+    /**
+     * Removes a message from the index.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param path    path of the removed file relative to the mailbox directory or {@code null} to
+     *                remove the message regardless of its file
+     * @return the file of the removed message or {@code null} if the message has not been removed
+     */
+    private Entry unindex(String mailbox, String message, String path) {
+        final Entry[] removed = new Entry[1];
+        index.computeIfPresent(mailbox, (key, messages) -> {
+            final Entry entry = messages.get(message);
+            // The file of a moved message is removed after the index is updated
+            if (entry != null && (path == null || path.equals(entry.path())) && messages.remove(message, entry)) {
+                removed[0] = entry;
+            }
+            return messages.isEmpty() ? null : messages;
+        });
+        if (removed[0] != null) {
+            metadata.remove(mailbox, message);
+        }
+        return removed[0];
+    }
+
+    /**
+     * Adds a message to the index or updates its file and notifies the listener.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param entry   message file
+     */
+    private void update(String mailbox, String message, Entry entry) {
+        final Entry previous = index(mailbox, message, entry);
+        if (previous == null) {
+            notifier.added(mailbox, message, entry.size);
+        } else if (previous.size != entry.size) {
+            // Rewritten by another program
+            notifier.removed(mailbox, message, previous.size);
+            notifier.added(mailbox, message, entry.size);
+        }
+    }
+
+    /**
+     * Removes a message from the index and notifies the listener.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param path    path of the removed file relative to the mailbox directory or {@code null} to
+     *                remove the message regardless of its file
+     */
+    private void remove(String mailbox, String message, String path) {
+        final Entry removed = unindex(mailbox, message, path);
+        if (removed != null) {
+            notifier.removed(mailbox, message, removed.size);
+        }
+    }
+
+    /**
+     * Finds the current file of a message on the disk and updates the index.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @return the message file or {@code null} if the message has been removed
+     */
+    private Entry locate(String mailbox, String message) {
+        synchronized (fileLock) {
+            final Entry entry = scan(mailbox).get(message);
+            if (entry == null) {
+                remove(mailbox, message, null);
+            } else {
+                update(mailbox, message, entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Lists the messages of a mailbox in its {@code new} and {@code cur} folders.
+     *
+     * @param mailbox mailbox
+     * @return the message IDs and their files
+     */
+    private Map<String, Entry> scan(String mailbox) {
+        final Map<String, Entry> messages = new HashMap<>();
+        for (String folder : new String[] {NEW, CUR}) {
+            final File[] files = new File(new File(root, mailbox), folder).listFiles(
+                file -> file.isFile() && !file.getName().startsWith("."));
+            if (files != null) {
+                for (File file : files) {
+                    final Entry entry = new Entry(folder, file.getName(), file.length());
+                    messages.put(entry.messageId(), entry);
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Removes the files left in a {@code tmp} folder by the interrupted deliveries.
+     *
+     * @param tmp {@code tmp} folder of a mailbox
+     */
+    private static void removeStaleFiles(File tmp) {
+        final long staleTime = System.currentTimeMillis() - STALE_TMP_AGE;
+        final File[] files = tmp.listFiles(file -> file.isFile() && file.lastModified() < staleTime);
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.warn("Could not remove stale file '{}'", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts watching the root directory for the changes made by other programs.
+     *
+     * @param root path to root directory of the mailboxes
+     * @return the watcher or {@code null} if the directory could not be watched
+     */
+    private MailboxWatcher watch(File root) {
+        if (!root.isDirectory()) {
+            return null;
+        }
+        try {
+            return new MailboxWatcher(new MailboxWatcher.Target() {
+                @Override
+                public void syncFile(String mailbox, String folder, String fileName) {
+                    MaildirMailStore.this.syncFile(mailbox, folder, fileName);
+                }
+
+                @Override
+                public void syncMailbox(String mailbox) {
+                    MaildirMailStore.this.syncMailbox(mailbox);
+                }
+
+                @Override
+                public void syncAll() {
+                    MaildirMailStore.this.syncAll();
+                }
+            }, root, NEW, CUR);
+        } catch (IOException ex) {
+            logger.warn("Could not watch directory '{}', external changes are ignored: {}",
+                root.getAbsolutePath(), ex.getMessage());
+            return null;
+        }
+    }
+
+    private File writeTmp(String mailbox, String message, MessageSpool content) throws IOException {
+        final File tmp = new File(new File(new File(root, mailbox), TMP), message);
+        try {
+            content.writeTo(tmp);
+            return tmp;
+        } catch (IOException ex) {
+            logger.error("Could not write file '{}': {}", tmp, ex.getMessage());
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates a hard link to the message file.
+     *
+     * @param source existing message file
+     * @param dest   link to create
+     * @return {@code true} if the link has been created or {@code false} if the file system does
+     *     not support hard links and the message must be copied
+     */
+    private static boolean linkFile(File source, File dest) {
+        try {
+            Files.deleteIfExists(dest.toPath());
+            Files.createLink(dest.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            logger.debug("Could not link file '{}' to '{}': {}", dest, source, ex.getMessage());
+            return false;
+        }
+    }
+
+    private static void moveFile(File source, File dest) throws IOException {
+        try {
+            Files.move(source.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.error("Could not move file '{}' to '{}': {}", source, dest, ex.getMessage());
+            throw ex;
+        }
+    }
+
+    /**
+     * Message file in the {@code new} or {@code cur} folder.
+     */
+    private static final class Entry {
+
+        final String folder;
+        final String fileName;
+        final long size;
+
+        Entry(String folder, String fileName, long size) {
+            this.folder = folder;
+            this.fileName = fileName;
+            this.size = size;
+        }
+
+        String path() {
+            return folder + File.separator + fileName;
+        }
+
+        /**
+         * Gets the message ID, that is the file name without the info suffix.
+         */
+        String messageId() {
+            final int colon = fileName.indexOf(':');
+            return colon < 0 ? fileName : fileName.substring(0, colon);
+        }
+
+        /**
+         * Gets the flags of the {@code :2,} info suffix.
+         */
+        String info() {
+            final int info = fileName.indexOf(INFO);
+            return info < 0 ? null : fileName.substring(info + INFO.length());
+        }
+
+        boolean isSeen() {
+            final String info = info();
+            return info != null && info.indexOf(SEEN) >= 0;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            final Entry entry = (Entry) obj;
+            return folder.equals(entry.folder) && fileName.equals(entry.fileName) && size == entry.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return fileName.hashCode();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+
+import ru.eugenehr.testmailserver.MessageMetadata;
+import ru.eugenehr.testmailserver.MessageSpool;
+
+/**
+ * Mail store keeping the messages in memory only, they are lost when the server stops.
+ *
+ * <p>The content of a message is copied once to a heap or a direct (off-heap) buffer shared by
+ * all its mailboxes. The buffer is freed by the garbage collector when the message is deleted
+ * from the last mailbox.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class MemoryMailStore implements MailStore {
+
+    private final boolean direct;
+    /**
+     * Mailbox name to the message IDs sorted by name and their read-only contents. Only the
+     * mailboxes with messages are present.
+     */
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, ByteBuffer>> index =
+        new ConcurrentHashMap<>();
+    private final MetadataCache metadata = new MetadataCache();
+    private final MailStoreNotifier notifier = new MailStoreNotifier();
+
+    /**
+     * Creates a mail store.
+     *
+     * @param direct {@code true} to keep the messages in the direct buffers out of the Java heap
+     */
+    public MemoryMailStore(boolean direct) {
+        this.direct = direct;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    @Override
+    public Set<String> getMailboxes() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    @Override
+    public Set<String> getMessages(String mailbox) {
+        final ConcurrentSkipListMap<String, ByteBuffer> messages = index.get(mailbox);
+        return messages == null ? Collections.emptySet() : Collections.unmodifiableSet(messages.keySet());
+    }
+
+    @Override
+    public long getMessageSize(String mailbox, String message) {
+        return metadata.getSize(mailbox, message, getStoredSize(mailbox, message),
+            () -> openMessage(mailbox, message));
+    }
+
+    @Override
+    public long getStoredSize(String mailbox, String message) {
+        final ByteBuffer content = getContent(mailbox, message);
+        return content == null ? 0 : content.remaining();
+    }
+
+    @Override
+    public InputStream openMessage(String mailbox, String message) throws IOException {
+        final ByteBuffer content = getContent(mailbox, message);
+        return content == null ? null
+            : Compression.decompress(new ByteBufInputStream(Unpooled.wrappedBuffer(content.duplicate())));
+    }
+
+    @Override
+    public MessageMetadata getMetadata(String mailbox, String message) throws IOException {
+        return metadata.get(mailbox, message, getStoredSize(mailbox, message), () -> openMessage(mailbox, message));
+    }
+
+    @Override
+    public CompletableFuture<Void> deliver(Set<String> mailboxes, String message, MessageSpool content)
+        throws IOException {
+        final long length = content.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Message is too large to be kept in memory: " + length + " bytes");
+        }
+        final ByteBuffer buffer = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+        content.copyTo(buffer);
+        buffer.flip();
+        final ByteBuffer shared = buffer.asReadOnlyBuffer();
+
+        for (String mailbox : mailboxes) {
+            // Atomic with the removal of the emptied mailbox by deleteMessage
+            index.compute(mailbox, (key, messages) -> {
+                final ConcurrentSkipListMap<String, ByteBuffer> result = messages == null
+                    ? new ConcurrentSkipListMap<>() : messages;
+                result.put(message, shared);
+                return result;
+            });
+            if (content.getMetadata() != null) {
+                metadata.put(mailbox, message, length, content.getMetadata());
+            }
+            notifier.added(mailbox, message, length);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public boolean deleteMessage(String mailbox, String message) {
+        final ByteBuffer[] removed = new ByteBuffer[1];
+        index.computeIfPresent(mailbox, (key, messages) -> {
+            removed[0] = messages.remove(message);
+            return messages.isEmpty() ? null : messages;
+        });
+        if (removed[0] == null) {
+            return false;
+        }
+        metadata.remove(mailbox, message);
+        notifier.removed(mailbox, message, removed[0].remaining());
+        return true;
+    }
+
+    @Override
+    public void setListener(MailStoreListener listener) {
+        notifier.setListener(listener);
+    }
+
+    /**
+     * Drops all the messages.
+     */
+    @Override
+    public void close() {
+        index.clear();
+        metadata.clear();
+    }
+
+    private ByteBuffer getContent(String mailbox, String message) {
+        final ConcurrentSkipListMap<String, ByteBuffer> messages = index.get(mailbox);
+        return messages == null ? null : messages.get(message);
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongBiFunction;
+
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.eugenehr.testmailserver.MessageMetadata;
+
+/**
+ * Cache of the {@link MessageMetadata} of the stored messages.
+ *
+ * <p>The metadata of the delivered messages is kept in memory and appended to a journal file, so it
+ * survives the restarts. The journal is rewritten with the live records only when it is opened and
+ * when most of its records are obsolete. The metadata of the messages added by other programs or
+ * lost with the unflushed part of the journal is computed from the message content on the first
+ * request.
+ *
+ * <p>The metadata is validated with the stored size of the message, which differs from the size in
+ * the metadata when the message is stored compressed.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+class MetadataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataCache.class);
+
+    private static final char PUT = '+';
+    private static final char REMOVE = '-';
+    private static final char SEPARATOR = '\t';
+    /**
+     * Minimum number of the journal records to consider the journal compaction.
+     */
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private final File journal;
+    /**
+     * Mailbox name to the message IDs and their metadata.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> cache = new ConcurrentHashMap<>();
+    private Writer writer;
+    private long records;
+    private long live;
+
+    /**
+     * Creates a cache kept in memory only.
+     */
+    MetadataCache() {
+        this.journal = null;
+    }
+
+    /**
+     * Creates a cache and loads the metadata of the stored messages from the journal.
+     *
+     * @param journal journal file
+     * @param sizes   gets the stored size of a message or 0 if there is no such message, the
+     *                metadata of the missing and changed messages is dropped
+     */
+    MetadataCache(File journal, ToLongBiFunction<String, String> sizes) {
+        this.journal = journal;
+        if (journal.isFile()) {
+            load(sizes);
+        }
+        synchronized (this) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Gets the metadata of a message, computes it if it is unknown or outdated.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param stored  stored message size in bytes
+     * @param content opens the message content, decompressed
+     * @return the metadata or {@code null} if there is no such message
+     * @throws IOException if the message could not be read
+     */
+    MessageMetadata get(String mailbox, String message, long stored, Content content) throws IOException {
+        final ConcurrentMap<String, Entry> messages = cache.get(mailbox);
+        final Entry entry = messages == null ? null : messages.get(message);
+        if (entry != null && entry.stored == stored) {
+            return entry.metadata;
+        }
+        try (InputStream in = content.open()) {
+            if (in == null) {
+                remove(mailbox, message);
+                return null;
+            }
+            final MessageMetadata parsed = MessageMetadata.parse(in);
+            put(mailbox, message, stored, parsed);
+            return parsed;
+        }
+    }
+
+    /**
+     * Gets the size of a message content, computes the metadata if it is unknown or outdated.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     * @param stored  stored message size in bytes or 0 if there is no such message
+     * @param content opens the message content, decompressed
+     * @return the size in bytes or the stored size if the message could not be read
+     */
+    long getSize(String mailbox, String message, long stored, Content content) {
+        if (stored == 0) {
+            return 0;
+        }
+        try {
+            final MessageMetadata metadata = get(mailbox, message, stored, content);
+            return metadata == null ? 0 : metadata.getSize();
+        } catch (IOException ex) {
+            logger.warn("Could not read message {} of mailbox {}: {}", message, mailbox, ex.getMessage());
+            return stored;
+        }
+    }
+
+    /**
+     * Adds the metadata of a delivered message.
+     *
+     * @param mailbox  mailbox
+     * @param message  message ID
+     * @param stored   stored message size in bytes
+     * @param metadata message metadata
+     */
+    void put(String mailbox, String message, long stored, MessageMetadata metadata) {
+        final Entry entry = new Entry(stored, metadata);
+        final boolean added = cache.computeIfAbsent(mailbox, key -> new ConcurrentHashMap<>())
+            .put(message, entry) == null;
+        if (journal != null) {
+            append(mailbox, message, entry, added);
+        }
+    }
+
+    /**
+     * Removes the metadata of a deleted message.
+     *
+     * @param mailbox mailbox
+     * @param message message ID
+     */
+    void remove(String mailbox, String message) {
+        final boolean[] removed = new boolean[1];
+        cache.computeIfPresent(mailbox, (key, messages) -> {
+            removed[0] = messages.remove(message) != null;
+            return messages.isEmpty() ? null : messages;
+        });
+        if (removed[0] && journal != null) {
+            append(mailbox, message, null, false);
+        }
+    }
+
+    /**
+     * Drops all the metadata kept in memory.
+     */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Flushes and closes the journal.
+     */
+    synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                logger.warn("Could not close metadata journal '{}': {}", journal, ex.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    private synchronized void append(String mailbox, String message, Entry entry, boolean added) {
+        if (writer == null) {
+            return;
+        }
+        if (entry == null) {
+            live--;
+        } else if (added) {
+            live++;
+        }
+        try {
+            write(writer, mailbox, message, entry);
+            writer.flush();
+            if (++records > MIN_COMPACT_RECORDS && records > 2 * live) {
+                rewrite();
+            }
+        } catch (IOException ex) {
+            logger.error("Could not write metadata journal '{}', metadata is kept in memory only: {}",
+                journal, ex.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Loads the journal records of the stored messages.
+     */
+    private void load(ToLongBiFunction<String, String> sizes) {
+        try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), CharsetUtil.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+                if (fields.length == 3 && fields[0].charAt(0) == REMOVE) {
+                    final Map<String, Entry> messages = cache.get(fields[1]);
+                    if (messages != null) {
+                        messages.remove(fields[2]);
+                    }
+                } else if (fields.length == 12 && fields[0].charAt(0) == PUT) {
+                    cache.computeIfAbsent(fields[1], key -> new ConcurrentHashMap<>()).put(fields[2],
+                        new Entry(Long.parseLong(fields[3]), new MessageMetadata(Long.parseLong(fields[4]),
+                            Long.parseLong(fields[5]), Long.parseLong(fields[6]), value(fields[7]),
+                            value(fields[8]), value(fields[9]), value(fields[10]), value(fields[11]))));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            // The metadata is computed again
+            logger.warn("Could not read metadata journal '{}': {}", journal, ex.getMessage());
+        }
+        cache.forEach((mailbox, messages) ->
+            messages.entrySet().removeIf(entry -> sizes.applyAsLong(mailbox, entry.getKey())
+                != entry.getValue().stored));
+        cache.values().removeIf(Map::isEmpty);
+    }
+
+    /**
+     * Rewrites the journal with the live records only.
+     */
+    private void rewrite() {
+        close();
+        final File tmp = new File(journal.getPath() + ".tmp");
+        records = 0;
+        live = 0;
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp.toPath(), CharsetUtil.UTF_8)) {
+                for (Map.Entry<String, ConcurrentMap<String, Entry>> mailbox : cache.entrySet()) {
+                    for (Map.Entry<String, Entry> message : mailbox.getValue().entrySet()) {
+                        write(out, mailbox.getKey(), message.getKey(), message.getValue());
+                        live++;
+                    }
+                }
+            }
+            records = live;
+            Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            writer = Files.newBufferedWriter(journal.toPath(), CharsetUtil.UTF_8, StandardOpenOption.APPEND);
+            logger.debug("Metadata journal '{}' rewritten with {} records", journal, records);
+        } catch (IOException ex) {
+            logger.error("Could not write metadata journal '{}', metadata is kept in memory only: {}",
+                journal, ex.getMessage());
+            close();
+        }
+    }
+
+    private static void write(Writer out, String mailbox, String message, Entry entry) throws IOException {
+        out.append(entry == null ? REMOVE : PUT).append(SEPARATOR).append(field(mailbox))
+            .append(SEPARATOR).append(field(message));
+        if (entry != null) {
+            final MessageMetadata metadata = entry.metadata;
+            out.append(SEPARATOR).append(Long.toString(entry.stored))
+                .append(SEPARATOR).append(Long.toString(metadata.getSize()))
+                .append(SEPARATOR).append(Long.toString(metadata.getHeaderLength()))
+                .append(SEPARATOR).append(Long.toString(metadata.getLines()))
+                .append(SEPARATOR).append(field(metadata.getFrom()))
+                .append(SEPARATOR).append(field(metadata.getTo()))
+                .append(SEPARATOR).append(field(metadata.getSubject()))
+                .append(SEPARATOR).append(field(metadata.getDate()))
+                .append(SEPARATOR).append(field(metadata.getMessageId()));
+        }
+        out.append('\n');
+    }
+
+    private static String field(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace(SEPARATOR, ' ').replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private static String value(String field) {
+        return field.isEmpty() ? null : field;
+    }
+
+    /**
+     * Metadata of a message and its stored size.
+     */
+    private static final class Entry {
+
+        private final long stored;
+        private final MessageMetadata metadata;
+
+        private Entry(long stored, MessageMetadata metadata) {
+            this.stored = stored;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Message content source.
+     */
+    interface Content {
+
+        /**
+         * Opens the message content.
+         *
+         * @return the content, to be closed by the caller, or {@code null} if there is no such
+         *     message
+         * @throws IOException if the message could not be read
+         */
+        InputStream open() throws IOException;
+    }
+}
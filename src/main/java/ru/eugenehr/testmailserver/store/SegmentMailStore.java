@@ -0,0 +1,790 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.eugenehr.testmailserver.DaemonThreadFactory;
+import ru.eugenehr.testmailserver.MessageMetadata;
+import ru.eugenehr.testmailserver.MessageSpool;
+
+/**
+ * Mail store appending the messages to large segment files.
+ *
+ * <p>The content of a message is appended once to the active segment, the segment is sealed and a
+ * new one is started when it reaches the maximum size. Every copy of the message in a mailbox is a
+ * fixed size record of the memory-mapped index file holding the mailbox number, the message ID,
+ * the segment, the offset, the length and the flags. The mailbox names are numbered in order of
+ * appearance in the mailboxes file. So a delivery writes to three files whatever the number of
+ * recipients and messages, a deletion flips a flag in the mapped index, and the startup reads the
+ * index sequentially instead of listing the directories.
+ *
+ * <p>The space of the deleted messages is reclaimed by the compactor. A sealed segment with less
+ * than a half of live data is rewritten to a new segment, the index records are pointed to it and
+ * the old segment is deleted. The index is compacted in place when most of its records are deleted.
+ *
+ * <p>Like in the {@link FileMailStore}, the deliveries are acknowledged according to the
+ * {@link Durability} mode. With no durability they are acknowledged once written to the OS and the
+ * files are synced when the store is closed. Otherwise the segments of the delivered messages, the
+ * index and the mailboxes file are synced before the deliveries are acknowledged.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class SegmentMailStore implements MailStore {
+
+    /**
+     * Default maximum size of a segment file.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentMailStore.class);
+
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final String INDEX_FILE = "index";
+    private static final String MAILBOXES_FILE = "mailboxes";
+    private static final String METADATA_FILE = "metadata";
+    private static final long COMPACT_INTERVAL = 10;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Index record layout, the flags are written last
+    private static final int RECORD_SIZE = 64;
+    private static final int FLAGS = 0;
+    private static final int ID_LENGTH = 1;
+    private static final int MAILBOX = 4;
+    private static final int SEGMENT = 8;
+    private static final int OFFSET = 16;
+    private static final int LENGTH = 24;
+    private static final int ID = 28;
+    private static final int MAX_ID_LENGTH = RECORD_SIZE - ID;
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte DELETED = 2;
+
+    private final File root;
+    private final long segmentSize;
+    /**
+     * Mailbox name to the message IDs sorted by name and their locations. Only the mailboxes with
+     * messages are present.
+     */
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, Entry>> mailboxes = new ConcurrentHashMap<>();
+    /**
+     * Guards the index, the segments and the locations of the messages. The readers of the message
+     * contents hold the read lock, so a segment is not closed under them.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private final List<String> mailboxNames = new ArrayList<>();
+    private final Map<String, Integer> mailboxNumbers = new HashMap<>();
+    private final FileChannel mailboxesChannel;
+    private final FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int records;
+    private int deletedRecords;
+    private int nextSegment;
+    /**
+     * Number of the deletions since the last compaction.
+     */
+    private int deletions;
+    /**
+     * Guards the appends to the active segment.
+     */
+    private final Object appendLock = new Object();
+    /**
+     * Segment the messages are appended to, replaced under the write lock.
+     */
+    private volatile Segment active;
+    private final MetadataCache metadata;
+    private final MailStoreNotifier notifier = new MailStoreNotifier();
+    private final CommitPolicy commitPolicy = new CommitPolicy(this::sync);
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * Creates a mail store with the default segment size.
+     *
+     * @param root path to the directory of the segment and index files
+     * @throws IOException if the store could not be opened
+     */
+    public SegmentMailStore(File root) throws IOException {
+        this(root, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a mail store.
+     *
+     * @param root        path to the directory of the segment and index files
+     * @param segmentSize maximum size of a segment file, a larger message gets a segment of its own
+     * @throws IOException if the store could not be opened
+     */
+    public SegmentMailStore(File root, long segmentSize) throws IOException {
+        logger.info("Using '{}' directory to store mailbox segments", root.getAbsolutePath());
+        this.root = root;
+        this.segmentSize = segmentSize;
+        final long start = System.nanoTime();
+        Files.createDirectories(root.toPath());
+        mailboxesChannel = FileChannel.open(new File(root, MAILBOXES_FILE).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(new File(root, INDEX_FILE).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            loadMailboxes();
+            loadSegments();
+            loadIndex();
+            removeUnusedSegments();
+            active = segments.get(nextSegment - 1);
+            if (active == null) {
+                active = newSegment();
+            }
+        } catch (IOException ex) {
+            closeFiles();
+            throw ex;
+        }
+        logger.info("Loaded {} messages of {} mailboxes from {} segments in {} ms", records - deletedRecords,
+            mailboxes.size(), segments.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        metadata = new MetadataCache(new File(root, METADATA_FILE), this::getStoredSize);
+
+        compactor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("segment-compactor-"));
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (Exception ex) {
+                logger.error("Could not compact segments: {}", ex.getMessage());
+            }
+        }, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public Durability getDurability() {
+        return commitPolicy.getDurability();
+    }
+
+    /**
+     * Sets the durability of delivered messages.
+     *
+     * @param durability  durability mode
+     * @param interval    maximum time in milliseconds a delivery waits for the group commit
+     * @param maxMessages maximum number of messages synced by the group commit at once
+     */
+    public void setDurability(Durability durability, long interval, int maxMessages) {
+        commitPolicy.setDurability(durability, interval, maxMessages);
+    }
+
+    @Override
+    public Set<String> getMailboxes() {
+        return Collections.unmodifiableSet(mailboxes.keySet());
+    }
+
+    @Override
+    public Set<String> getMessages(String mailbox) {
+        final ConcurrentSkipListMap<String, Entry> messages = mailboxes.get(mailbox);
+        return messages == null ? Collections.emptySet() : Collections.unmodifiableSet(messages.keySet());
+    }
+
+    @Override
+    public long getMessageSize(String mailbox, String message) {
+        return metadata.getSize(mailbox, message, getStoredSize(mailbox, message),
+            () -> openMessage(mailbox, message));
+    }
+
+    @Override
+    public long getStoredSize(String mailbox, String message) {
+        final Entry entry = getEntry(mailbox, message);
+        return entry == null ? 0 : entry.length;
+    }
+
+    @Override
+    public InputStream openMessage(String mailbox, String message) throws IOException {
+        final ByteBuffer content;
+        lock.readLock().lock();
+        try {
+            final Entry entry = getEntry(mailbox, message);
+            if (entry == null) {
+                return null;
+            }
+            content = ByteBuffer.allocate(entry.length);
+            final FileChannel channel = segments.get(entry.segment).channel;
+            while (content.hasRemaining()) {
+                if (channel.read(content, entry.offset + content.position()) < 0) {
+                    throw new EOFException("Segment " + entry.segment + " is truncated");
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Compression.decompress(new ByteArrayInputStream(content.array()));
+    }
+
+    @Override
+    public MessageMetadata getMetadata(String mailbox, String message) throws IOException {
+        return metadata.get(mailbox, message, getStoredSize(mailbox, message), () -> openMessage(mailbox, message));
+    }
+
+    @Override
+    public CompletableFuture<Void> deliver(Set<String> mailboxes, String message, MessageSpool content)
+        throws IOException {
+        final byte[] id = message.getBytes(StandardCharsets.US_ASCII);
+        if (id.length > MAX_ID_LENGTH) {
+            throw new IOException("Message ID is too long: " + message);
+        }
+        final long length = content.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Message is too large: " + length + " bytes");
+        }
+
+        final Segment segment;
+        synchronized (appendLock) {
+            if (active.size > 0 && active.size + length > segmentSize) {
+                // Seal the active segment
+                lock.writeLock().lock();
+                try {
+                    active = newSegment();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            segment = active;
+            final long offset = segment.size;
+            content.writeTo(segment.channel, offset);
+            segment.size += length;
+
+            // Indexed before the segment could be sealed and compacted
+            lock.writeLock().lock();
+            try {
+                for (String mailbox : mailboxes) {
+                    final int record = addRecord(mailboxNumber(mailbox), id, segment.number, offset, (int) length);
+                    final Entry entry = new Entry(record, segment.number, offset, (int) length);
+                    this.mailboxes.computeIfAbsent(mailbox, key -> new ConcurrentSkipListMap<>()).put(message, entry);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (content.getMetadata() != null) {
+            mailboxes.forEach(mailbox -> metadata.put(mailbox, message, length, content.getMetadata()));
+        }
+        mailboxes.forEach(mailbox -> notifier.added(mailbox, message, length));
+        return commitPolicy.commit(Collections.singletonList(segment.file));
+    }
+
+    @Override
+    public boolean deleteMessage(String mailbox, String message) {
+        final Entry entry;
+        lock.writeLock().lock();
+        try {
+            final ConcurrentSkipListMap<String, Entry> messages = mailboxes.get(mailbox);
+            entry = messages == null ? null : messages.remove(message);
+            if (entry == null) {
+                return false;
+            }
+            if (messages.isEmpty()) {
+                mailboxes.remove(mailbox);
+            }
+            index.put(entry.record * RECORD_SIZE + FLAGS, DELETED);
+            deletedRecords++;
+            deletions++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        metadata.remove(mailbox, message);
+        notifier.removed(mailbox, message, entry.length);
+        return true;
+    }
+
+    @Override
+    public void setListener(MailStoreListener listener) {
+        notifier.setListener(listener);
+    }
+
+    /**
+     * Syncs the pending messages, stops the group commit and the compactor, syncs and closes the files.
+     */
+    @Override
+    public void close() {
+        commitPolicy.shutdown();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            lock.writeLock().lock();
+            try {
+                index.force();
+                for (Segment segment : segments.values()) {
+                    segment.channel.force(true);
+                }
+                mailboxesChannel.force(true);
+            } catch (IOException ex) {
+                logger.error("Could not sync mail store: {}", ex.getMessage());
+            } finally {
+                closeFiles();
+                lock.writeLock().unlock();
+            }
+        }
+        metadata.close();
+    }
+
+    /**
+     * Syncs the segments of the delivered messages, the index and the mailboxes file.
+     *
+     * @param files segment files of the delivered messages
+     * @throws IOException if the files could not be synced
+     */
+    private void sync(Collection<File> files) throws IOException {
+        lock.readLock().lock();
+        try {
+            // A compacted segment has been synced and deleted, the index points to its copy
+            for (Segment segment : segments.values()) {
+                if (files.contains(segment.file)) {
+                    segment.channel.force(true);
+                }
+            }
+            mailboxesChannel.force(true);
+            index.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+        // The entries of the new segment files
+        GroupCommit.syncDirectory(root);
+    }
+
+    /**
+     * Reclaims the space of the deleted messages.
+     *
+     * @throws IOException if a segment could not be compacted
+     */
+    void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (deletions == 0) {
+                return;
+            }
+            deletions = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // The sealed segments are not modified, the live messages are copied without the lock
+        final Map<Integer, List<Located>> live = new HashMap<>();
+        final List<Segment> sealed = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            final Segment current = active;
+            segments.values().stream().filter(segment -> segment != current).forEach(sealed::add);
+            mailboxes.forEach((mailbox, messages) -> messages.forEach((message, entry) ->
+                live.computeIfAbsent(entry.segment, key -> new ArrayList<>()).add(
+                    new Located(mailbox, message, entry))));
+        } finally {
+            lock.readLock().unlock();
+        }
+        final List<Segment> sources = new ArrayList<>();
+        long garbage = 0;
+        for (Segment segment : sealed) {
+            // Hard links of a message to several mailboxes share the content
+            final long liveBytes = contents(live.get(segment.number)).values().stream()
+                .mapToLong(Integer::longValue).sum();
+            if (liveBytes * 2 < segment.size) {
+                sources.add(segment);
+                garbage += segment.size - liveBytes;
+            }
+        }
+        if (!sources.isEmpty()) {
+            compactSegments(sources, live);
+            logger.info("Compacted {} segments, {} bytes reclaimed", sources.size(), garbage);
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (deletedRecords * 2 > records) {
+                compactIndex();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the live messages of the sealed segments to new segments and deletes them.
+     *
+     * @param sources segments to compact
+     * @param live    live messages by segment number
+     */
+    private void compactSegments(List<Segment> sources, Map<Integer, List<Located>> live) throws IOException {
+        // New locations of the message contents by the segment number and offset
+        final Map<Integer, Map<Long, Entry>> moved = new HashMap<>();
+        final List<Segment> targets = new ArrayList<>();
+        Segment target = null;
+        for (Segment source : sources) {
+            final Map<Long, Entry> locations = new HashMap<>();
+            moved.put(source.number, locations);
+            for (Map.Entry<Long, Integer> content : contents(live.get(source.number)).entrySet()) {
+                final int length = content.getValue();
+                if (target == null || target.size > 0 && target.size + length > segmentSize) {
+                    lock.writeLock().lock();
+                    try {
+                        target = newSegment();
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    targets.add(target);
+                }
+                // Only the compactor moves the position of a sealed segment
+                long copied = 0;
+                while (copied < length) {
+                    final long count = target.channel.transferFrom(source.channel.position(content.getKey() + copied),
+                        target.size + copied, length - copied);
+                    if (count <= 0) {
+                        throw new EOFException("Segment " + source.number + " is truncated");
+                    }
+                    copied += count;
+                }
+                locations.put(content.getKey(), new Entry(-1, target.number, target.size, length));
+                target.size += length;
+            }
+        }
+        for (Segment segment : targets) {
+            segment.channel.force(true);
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (Segment source : sources) {
+                for (Located located : live.getOrDefault(source.number, Collections.emptyList())) {
+                    final ConcurrentSkipListMap<String, Entry> entries = mailboxes.get(located.mailbox);
+                    final Entry location = moved.get(source.number).get(located.entry.offset);
+                    if (entries != null && entries.get(located.message) == located.entry) {
+                        final int position = located.entry.record * RECORD_SIZE;
+                        index.putInt(position + SEGMENT, location.segment);
+                        index.putLong(position + OFFSET, location.offset);
+                        entries.put(located.message, new Entry(located.entry.record, location.segment,
+                            location.offset, location.length));
+                    }
+                }
+                segments.remove(source.number);
+            }
+            // The old segments are deleted once the index points to the durable copies
+            index.force();
+            GroupCommit.syncDirectory(root);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // No reader holds the removed segments after the write lock
+        for (Segment source : sources) {
+            source.channel.close();
+            Files.delete(source.file.toPath());
+        }
+        GroupCommit.syncDirectory(root);
+    }
+
+    /**
+     * Gets the distinct contents of the messages.
+     *
+     * @param messages messages of a segment or {@code null}
+     * @return the lengths of the contents sorted by offset
+     */
+    private static Map<Long, Integer> contents(List<Located> messages) {
+        final Map<Long, Integer> contents = new TreeMap<>();
+        if (messages != null) {
+            messages.forEach(located -> contents.put(located.entry.offset, located.entry.length));
+        }
+        return contents;
+    }
+
+    /**
+     * Moves the live index records to the beginning of the index. Must be called under the write
+     * lock.
+     */
+    private void compactIndex() {
+        int live = 0;
+        for (int record = 0; record < records; record++) {
+            final int position = record * RECORD_SIZE;
+            if (index.get(position + FLAGS) != LIVE) {
+                continue;
+            }
+            if (live != record) {
+                final int target = live * RECORD_SIZE;
+                // A torn record reads as deleted
+                index.put(target + FLAGS, DELETED);
+                for (int i = 1; i < RECORD_SIZE; i++) {
+                    index.put(target + i, index.get(position + i));
+                }
+                index.put(target + FLAGS, LIVE);
+                final Entry entry = readEntry(live);
+                final ConcurrentSkipListMap<String, Entry> messages = mailboxes.get(
+                    mailboxNames.get(index.getInt(target + MAILBOX)));
+                final String message = readId(live);
+                messages.put(message, new Entry(live, entry.segment, entry.offset, entry.length));
+            }
+            live++;
+        }
+        for (int record = live; record < records; record++) {
+            index.put(record * RECORD_SIZE + FLAGS, EMPTY);
+        }
+        logger.info("Compacted index, {} records reclaimed", records - live);
+        records = live;
+        deletedRecords = 0;
+    }
+
+    /**
+     * Appends a record to the index. Must be called under the write lock.
+     *
+     * @return the record number
+     */
+    private int addRecord(int mailbox, byte[] id, int segment, long offset, int length) throws IOException {
+        if ((records + 1) * RECORD_SIZE > index.capacity()) {
+            mapIndex(index.capacity() / RECORD_SIZE * 2);
+        }
+        final int position = records * RECORD_SIZE;
+        index.put(position + ID_LENGTH, (byte) id.length);
+        index.putInt(position + MAILBOX, mailbox);
+        index.putInt(position + SEGMENT, segment);
+        index.putLong(position + OFFSET, offset);
+        index.putInt(position + LENGTH, length);
+        for (int i = 0; i < id.length; i++) {
+            index.put(position + ID + i, id[i]);
+        }
+        index.put(position + FLAGS, LIVE);
+        return records++;
+    }
+
+    /**
+     * Gets the number of a mailbox, a new mailbox is appended to the mailboxes file. Must be
+     * called under the write lock.
+     */
+    private int mailboxNumber(String mailbox) throws IOException {
+        final Integer number = mailboxNumbers.get(mailbox);
+        if (number != null) {
+            return number;
+        }
+        final ByteBuffer line = ByteBuffer.wrap((mailbox + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            mailboxesChannel.write(line, mailboxesChannel.size());
+        }
+        mailboxNames.add(mailbox);
+        mailboxNumbers.put(mailbox, mailboxNames.size() - 1);
+        return mailboxNames.size() - 1;
+    }
+
+    private Entry getEntry(String mailbox, String message) {
+        final ConcurrentSkipListMap<String, Entry> messages = mailboxes.get(mailbox);
+        return messages == null ? null : messages.get(message);
+    }
+
+    private Entry readEntry(int record) {
+        final int position = record * RECORD_SIZE;
+        return new Entry(record, index.getInt(position + SEGMENT), index.getLong(position + OFFSET),
+            index.getInt(position + LENGTH));
+    }
+
+    private String readId(int record) {
+        final int position = record * RECORD_SIZE;
+        final byte[] id = new byte[index.get(position + ID_LENGTH)];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = index.get(position + ID + i);
+        }
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Creates a new empty segment. Must be called under the write lock.
+     */
+    private Segment newSegment() throws IOException {
+        final Segment segment = new Segment(nextSegment++);
+        segments.put(segment.number, segment);
+        return segment;
+    }
+
+    private void mapIndex(int capacity) throws IOException {
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+    }
+
+    private void loadMailboxes() throws IOException {
+        final String names = new String(Files.readAllBytes(new File(root, MAILBOXES_FILE).toPath()),
+            StandardCharsets.UTF_8);
+        int start = 0;
+        for (int end = names.indexOf('\n'); end >= 0; end = names.indexOf('\n', start)) {
+            final String mailbox = names.substring(start, end);
+            mailboxNumbers.put(mailbox, mailboxNames.size());
+            mailboxNames.add(mailbox);
+            start = end + 1;
+        }
+    }
+
+    private void loadSegments() throws IOException {
+        final File[] files = root.listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                final int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+                segments.put(number, new Segment(number));
+                nextSegment = Math.max(nextSegment, number + 1);
+            }
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        mapIndex((int) Math.max(INITIAL_CAPACITY, indexChannel.size() / RECORD_SIZE));
+        final int capacity = index.capacity() / RECORD_SIZE;
+        while (records < capacity) {
+            final byte flags = index.get(records * RECORD_SIZE + FLAGS);
+            if (flags == EMPTY) {
+                break;
+            }
+            if (flags == LIVE) {
+                final Entry entry = readEntry(records);
+                final int mailbox = index.getInt(records * RECORD_SIZE + MAILBOX);
+                if (mailbox < mailboxNames.size() && segments.containsKey(entry.segment)) {
+                    final Entry previous = mailboxes.computeIfAbsent(mailboxNames.get(mailbox),
+                        key -> new ConcurrentSkipListMap<>()).put(readId(records), entry);
+                    if (previous != null) {
+                        // Left by an interrupted index compaction
+                        index.put(previous.record * RECORD_SIZE + FLAGS, DELETED);
+                        deletedRecords++;
+                    }
+                } else {
+                    logger.warn("Index record {} refers to a missing mailbox or segment", records);
+                    index.put(records * RECORD_SIZE + FLAGS, DELETED);
+                    deletedRecords++;
+                }
+            } else {
+                deletedRecords++;
+            }
+            records++;
+        }
+        // Compact the index left by the previous run
+        deletions = deletedRecords;
+    }
+
+    /**
+     * Deletes the segments with no live messages, but the last one, e.g. left by an interrupted
+     * compaction.
+     */
+    private void removeUnusedSegments() throws IOException {
+        final Set<Integer> used = new HashSet<>();
+        mailboxes.values().forEach(messages -> messages.values().forEach(entry -> used.add(entry.segment)));
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (!used.contains(segment.number) && segment.number != nextSegment - 1) {
+                segments.remove(segment.number);
+                segment.channel.close();
+                Files.delete(segment.file.toPath());
+            }
+        }
+    }
+
+    private void closeFiles() {
+        for (Segment segment : segments.values()) {
+            closeQuietly(segment.channel);
+        }
+        closeQuietly(mailboxesChannel);
+        closeQuietly(indexChannel);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.warn("Could not close file: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Location of a message in a mailbox.
+     */
+    private static class Entry {
+        private final int record;
+        private final int segment;
+        private final long offset;
+        private final int length;
+
+        private Entry(int record, int segment, long offset, int length) {
+            this.record = record;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Location of a message with its mailbox and ID.
+     */
+    private static class Located {
+        private final String mailbox;
+        private final String message;
+        private final Entry entry;
+
+        private Located(String mailbox, String message, Entry entry) {
+            this.mailbox = mailbox;
+            this.message = message;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Segment file.
+     */
+    private class Segment {
+        private final int number;
+        private final File file;
+        private final FileChannel channel;
+        /**
+         * Size of the written data, guarded by the append lock for the active segment.
+         */
+        private long size;
+
+        private Segment(int number) throws IOException {
+            this.number = number;
+            this.file = new File(root, String.format("%08d", number) + SEGMENT_EXTENSION);
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+}
@@ -16,8 +16,10 @@
 
 package ru.eugenehr.testmailserver.ui;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
@@ -27,15 +29,17 @@ import io.netty.util.CharsetUtil;
 import javafx.application.Platform;
 import javafx.geometry.Orientation;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.SplitPane;
 import javafx.scene.control.TextArea;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import ru.eugenehr.testmailserver.MailServer;
 import ru.eugenehr.testmailserver.Mailboxes;
+import ru.eugenehr.testmailserver.MessageMetadata;
 import ru.eugenehr.testmailserver.event.MailboxEvent;
 
 /**
@@ -51,6 +55,11 @@ public class MailboxesPane extends BorderPane {
     private final ListView<String> mailboxesView;
     private final ListView<String> messagesView;
     private final TextArea messagePane;
+    /**
+     * Descriptions of the messages of the selected mailbox, the message ID while the metadata is
+     * loaded. Accessed by the JavaFX application thread only.
+     */
+    private final Map<String, String> descriptions = new HashMap<>();
 
     /**
      * Creates a mailboxes pane.
@@ -77,6 +86,13 @@ public class MailboxesPane extends BorderPane {
         centerPane.getItems().add(mailboxesView);
 
         messagesView = new ListView<>();
+        messagesView.setCellFactory(view -> new ListCell<String>() {
+            @Override
+            protected void updateItem(String message, boolean empty) {
+                super.updateItem(message, empty);
+                setText(empty || message == null ? null : describeMessage(message));
+            }
+        });
         messagesView.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
             String mailbox = mailboxesView.getSelectionModel().getSelectedItem();
             selectMessage(mailbox, newValue);
@@ -102,6 +118,7 @@ public class MailboxesPane extends BorderPane {
      * @param mailbox mailbox to select
      */
     private void selectMailbox(String mailbox) {
+        descriptions.clear();
         messagesView.getItems().clear();
         messagesView.getItems().addAll(mailboxes.getMessages(mailbox));
         if (!messagesView.getItems().isEmpty()) {
@@ -120,20 +137,71 @@ public class MailboxesPane extends BorderPane {
     private void selectMessage(String mailbox, String message) {
         messagePane.clear();
         if (mailbox != null && message != null) {
-            final File file = mailboxes.getMessage(mailbox, message);
-            if (file.exists()) {
-                CompletableFuture.supplyAsync(() -> {
-                    try {
-                        return FileUtils.readLines(file, CharsetUtil.US_ASCII)
-                            .stream()
-                            .collect(Collectors.joining("\n"));
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
+            CompletableFuture.supplyAsync(() -> {
+                try (InputStream in = mailboxes.openMessage(mailbox, message)) {
+                    return in == null ? null : IOUtils.readLines(in, CharsetUtil.UTF_8)
+                        .stream()
+                        .collect(Collectors.joining("\n"));
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }).exceptionally(Throwable::getMessage)
+                .thenAccept(text -> {
+                    if (text != null) {
+                        Platform.runLater(() -> messagePane.setText(text));
                     }
-                }).exceptionally(Throwable::getMessage)
-                    .thenAccept(text -> Platform.runLater(() -> messagePane.setText(text)));
+                });
+        }
+    }
+
+    /**
+     * Describes a message of the selected mailbox in the messages list. The metadata may have to be
+     * read from the message, so it is loaded in background and the list is refreshed when it arrives.
+     *
+     * @param message message ID
+     * @return the description or the message ID while the metadata is loaded
+     */
+    private String describeMessage(String message) {
+        final String description = descriptions.get(message);
+        if (description != null) {
+            return description;
+        }
+        final String mailbox = mailboxesView.getSelectionModel().getSelectedItem();
+        if (mailbox == null) {
+            return message;
+        }
+        descriptions.put(message, message);
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return describeMessage(message, mailboxes.getMetadata(mailbox, message));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
             }
+        }).exceptionally(ex -> message)
+            .thenAccept(text -> Platform.runLater(() -> {
+                // The mailbox may have been switched or the message deleted meanwhile
+                if (mailbox.equals(mailboxesView.getSelectionModel().getSelectedItem())
+                    && descriptions.containsKey(message)) {
+                    descriptions.put(message, text);
+                    messagesView.refresh();
+                }
+            }));
+        return message;
+    }
+
+    /**
+     * Describes a message with its metadata.
+     *
+     * @param message  message ID
+     * @param metadata message metadata or {@code null}
+     * @return the subject and the sender of the message or the message ID if they are unknown
+     */
+    private static String describeMessage(String message, MessageMetadata metadata) {
+        if (metadata == null || metadata.getSubject() == null && metadata.getFrom() == null) {
+            return message;
         }
+        final String subject = metadata.getSubject() == null ? "" : metadata.getSubject();
+        return metadata.getFrom() == null ? subject : subject + " (" + metadata.getFrom() + ")";
     }
 
     /**
@@ -157,6 +225,7 @@ public class MailboxesPane extends BorderPane {
             if (messagesView.getItems().contains(event.message)) {
                 boolean selected = event.message.equals(messagesView.getSelectionModel().getSelectedItem());
                 messagesView.getItems().remove(event.message);
+                descriptions.remove(event.message);
                 // Restore selection
                 if (selected && messagesView.getItems().size() > 0) {
                     messagesView.getSelectionModel().select(0);
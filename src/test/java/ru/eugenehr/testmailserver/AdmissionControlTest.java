@@ -0,0 +1,70 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link AdmissionControl} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class AdmissionControlTest {
+
+    private static final InetSocketAddress CLIENT1 = new InetSocketAddress("127.0.0.1", 40001);
+    private static final InetSocketAddress CLIENT1_OTHER_PORT = new InetSocketAddress("127.0.0.1", 40002);
+    private static final InetSocketAddress CLIENT2 = new InetSocketAddress("127.0.0.2", 40001);
+
+    @Test
+    public void sessionLimits() {
+        final AdmissionControl admissionControl = new AdmissionControl();
+        admissionControl.setMaxSessions(2);
+        admissionControl.setMaxSessionsPerAddress(1);
+
+        assertNull(admissionControl.admit(CLIENT1));
+        assertEquals(AdmissionControl.Limit.SESSIONS_PER_ADDRESS, admissionControl.admit(CLIENT1_OTHER_PORT));
+        assertNull(admissionControl.admit(CLIENT2));
+        assertEquals(AdmissionControl.Limit.SESSIONS, admissionControl.admit(CLIENT2));
+        assertEquals(2, admissionControl.getSessions());
+
+        admissionControl.release(CLIENT1);
+        assertEquals(1, admissionControl.getSessions());
+        assertNull(admissionControl.admit(CLIENT1_OTHER_PORT));
+    }
+
+    @Test
+    public void connectionRate() {
+        final AdmissionControl admissionControl = new AdmissionControl();
+        admissionControl.setMaxConnectionRate(10);
+
+        int admitted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (admissionControl.admit(CLIENT1) == null) {
+                admitted++;
+            }
+        }
+        // The loop may cross a one second window boundary
+        assertTrue(admitted >= 10 && admitted <= 20);
+        assertEquals(admitted, admissionControl.getSessions());
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link Command} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class CommandTest {
+
+    private static final Command.Verbs<SMTPHandler.Verb> VERBS = SMTPHandler.VERBS;
+
+    @Test
+    public void verbs() {
+        assertEquals(SMTPHandler.Verb.EHLO, command("ehlo localhost").verb(VERBS));
+        assertEquals(SMTPHandler.Verb.QUIT, command("QUIT").verb(VERBS));
+        assertEquals(SMTPHandler.Verb.STARTTLS, command("StartTLS").verb(VERBS));
+        assertNull(command("QUITE").verb(VERBS));
+        assertNull(command("STARTTLS2").verb(VERBS));
+        assertNull(command("QUI").verb(VERBS));
+        assertNull(command(" QUIT").verb(VERBS));
+        assertNull(command("").verb(VERBS));
+    }
+
+    @Test
+    public void arguments() {
+        final Command command = command("MAIL from:<user@example.com>  size=1024 BODY=BINARYMIME ");
+        assertEquals(SMTPHandler.Verb.MAIL, command.verb(VERBS));
+        assertTrue(command.prefix(new byte[]{'F', 'R', 'O', 'M', ':'}));
+        assertEquals("user@example.com", command.path());
+        assertFalse(command.prefix(new byte[]{'B', 'O', 'D', 'Y', '='}));
+        assertTrue(command.prefix(new byte[]{'S', 'I', 'Z', 'E', '='}));
+        assertEquals(1024, command.number());
+        assertTrue(command.prefix(new byte[]{'B', 'O', 'D', 'Y', '='}));
+        assertFalse(command.keyword(new byte[]{'B', 'I', 'N', 'A', 'R', 'Y'}));
+        assertEquals("BINARYMIME", command.argument());
+        assertTrue(command.isEnd());
+    }
+
+    @Test
+    public void numbers() {
+        assertEquals(42, command("42 LAST").number());
+        assertEquals(-1, command("42x").number());
+        assertEquals(-1, command("").number());
+        assertEquals(-1, command("1234567890123456789").number());
+        assertEquals("rest of line", command("  rest of line  ").rest());
+    }
+
+    private static Command command(String line) {
+        return new Command().reset(Unpooled.copiedBuffer(line, CharsetUtil.US_ASCII));
+    }
+}
@@ -36,6 +36,8 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import ru.eugenehr.testmailserver.store.FileMailStore;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -69,7 +71,7 @@ public class MailServerTest {
 
     @BeforeClass
     public static void setUp() throws Exception {
-        Mailboxes mailboxes = new Mailboxes(new File(System.getProperty("java.io.tmpdir")));
+        Mailboxes mailboxes = new Mailboxes(new FileMailStore(new File(System.getProperty("java.io.tmpdir"))));
         MailServer.INSTANCE = new MailServer(mailboxes);
         MailServer.INSTANCE.setRedirectToSender(true);
         MailServer.getInstance().startSMTP(2500);
@@ -81,6 +83,7 @@ public class MailServerTest {
         props.setProperty("mail.smtp.host", "127.0.0.1");
         props.setProperty("mail.smtp.port", "2500");
         props.setProperty("mail.smtp.auth", "false");
+        props.setProperty("mail.smtp.allow8bitmime", "true");
         props.setProperty("mail.store.protocol", "pop3");
         props.setProperty("mail.pop3.host", "127.0.0.1");
         props.setProperty("mail.pop3.port", "1100");
@@ -155,6 +158,9 @@ public class MailServerTest {
         bodyPart = ((Multipart) content).getBodyPart(0);
         assertTrue(bodyPart.getContentType().startsWith("text/plain"));
         assertEquals(bodyPart.getContent(), "Test message");
+        // 8-bit content must survive the round trip
+        bodyPart = ((Multipart) content).getBodyPart(2);
+        assertEquals(LOREM_IPSUM_RU_UTF8, bodyPart.getContent().toString().replace("\r\n", "\n"));
         inbox.close(true);
     }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link MessageIdGenerator} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class MessageIdGeneratorTest {
+
+    @Test
+    public void format() {
+        assertEquals("0000000000000abc-0012", MessageIdGenerator.format(0xabc, 0x12));
+        assertEquals("0123456789abcdef-ffff", MessageIdGenerator.format(0x0123456789abcdefL, 0xffff));
+    }
+
+    @Test
+    public void uniqueAndSorted() throws Exception {
+        final MessageIdGenerator generator = new MessageIdGenerator(1);
+        final Set<String> ids = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean sorted = new AtomicBoolean(true);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Thread thread = new Thread(() -> {
+                String prev = "";
+                for (int i = 0; i < 100000; i++) {
+                    final String id = generator.nextId();
+                    if (id.compareTo(prev) <= 0) {
+                        sorted.set(false);
+                    }
+                    ids.add(id);
+                    prev = id;
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(sorted.get());
+        assertEquals(400000, ids.size());
+        assertTrue(Collections.max(ids).compareTo(generator.nextId()) < 0);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.io.ByteArrayInputStream;
+
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link MessageMetadata} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class MessageMetadataTest {
+
+    private static final String MESSAGE = "From: john@example.com\r\nSubject: Long\r\n subject\r\n"
+        + "Message-ID: <1@example.com>\r\n\r\nLine 1\r\nLine 2";
+
+    @Test
+    public void parse() throws Exception {
+        final MessageMetadata metadata = MessageMetadata.parse(
+            new ByteArrayInputStream(MESSAGE.getBytes(CharsetUtil.US_ASCII)));
+        assertEquals(MESSAGE.length(), metadata.getSize());
+        assertEquals(MESSAGE.indexOf("Line 1"), metadata.getHeaderLength());
+        assertEquals(2, metadata.getLines());
+        assertEquals("john@example.com", metadata.getFrom());
+        assertEquals("Long subject", metadata.getSubject());
+        assertEquals("<1@example.com>", metadata.getMessageId());
+        assertNull(metadata.getTo());
+    }
+
+    @Test
+    public void parseByteByByte() {
+        // The line breaks and the empty line are split between the chunks
+        final MessageMetadata.Parser parser = new MessageMetadata.Parser();
+        for (byte value : (MESSAGE + "\r\n").getBytes(CharsetUtil.US_ASCII)) {
+            parser.update(Unpooled.wrappedBuffer(new byte[] {value}));
+        }
+        final MessageMetadata metadata = parser.finish();
+        assertEquals(MESSAGE.indexOf("Line 1"), metadata.getHeaderLength());
+        assertEquals(2, metadata.getLines());
+        assertEquals("Long subject", metadata.getSubject());
+    }
+}
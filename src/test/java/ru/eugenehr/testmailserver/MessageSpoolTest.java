@@ -0,0 +1,58 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link MessageSpool} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class MessageSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hugeSizeHint() throws Exception {
+        // SIZE=999999999999999999 declared by the client
+        final MessageSpool spool = new MessageSpool(UnpooledByteBufAllocator.DEFAULT, 4, 999999999999999999L);
+        try {
+            spool.write(Unpooled.copiedBuffer("Subject: Test\r\n\r\nBody\r\n", CharsetUtil.US_ASCII));
+            assertEquals(23, spool.close());
+            assertTrue(spool.isSpilled());
+            final File dest = folder.newFile();
+            spool.writeTo(dest);
+            assertEquals("Subject: Test\r\n\r\nBody\r\n", new String(Files.readAllBytes(dest.toPath()),
+                CharsetUtil.US_ASCII));
+        } finally {
+            spool.release();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+
+import ru.eugenehr.testmailserver.store.MemoryMailStore;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link Retention} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class RetentionTest {
+
+    @Test
+    public void limits() throws Exception {
+        final MemoryMailStore store = new MemoryMailStore(false);
+        final MessageIdGenerator ids = new MessageIdGenerator(1);
+        // An hour old message is delivered before the retention counts the store
+        final String old = MessageIdGenerator.format((System.currentTimeMillis() - 3600_000L) << 20, 1);
+        deliver(store, Collections.singleton("john@example.com"), old, 10);
+        // Purged by the test only
+        final Retention retention = new Retention(store, 3600_000L);
+        for (int i = 0; i < 5; i++) {
+            deliver(store, new HashSet<>(Arrays.asList("john@example.com", "jane@example.com")), ids.nextId(), 10);
+        }
+        assertEquals(6, retention.getMessages("john@example.com"));
+        assertEquals(110, retention.getTotalBytes());
+
+        retention.setMaxAge(60);
+        assertEquals(1, retention.purge());
+        assertEquals(100, retention.getTotalBytes());
+
+        retention.setMaxMessages(3);
+        assertEquals(4, retention.purge());
+        assertEquals(3, retention.getMessages("jane@example.com"));
+        assertEquals(30, retention.getBytes("john@example.com"));
+
+        retention.setQuota(40);
+        assertEquals(2, retention.purge());
+        assertEquals(40, retention.getTotalBytes());
+        // The oldest messages of both mailboxes are removed
+        assertEquals(2, store.getMessages("john@example.com").size());
+        assertEquals(2, store.getMessages("jane@example.com").size());
+        retention.shutdown();
+    }
+
+    private static void deliver(MemoryMailStore store, Set<String> mailboxes, String message, int size)
+        throws Exception {
+        final MessageSpool spool = new MessageSpool(UnpooledByteBufAllocator.DEFAULT, 1024, 0);
+        try {
+            spool.write(Unpooled.wrappedBuffer(new byte[size]));
+            spool.close();
+            store.deliver(mailboxes, message, spool).get();
+        } finally {
+            spool.release();
+        }
+    }
+}
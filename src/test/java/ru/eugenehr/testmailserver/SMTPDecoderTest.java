@@ -0,0 +1,102 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.eugenehr.testmailserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SMTPDecoder} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class SMTPDecoderTest {
+
+    @Test
+    public void commandLines() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new SMTPDecoder(1024));
+        channel.writeInbound(buffer("HELO localhost\r\nNO"));
+        assertEquals("HELO localhost", readLine(channel));
+        assertNull(channel.readInbound());
+        channel.writeInbound(buffer("OP\r\n"));
+        assertEquals("NOOP", readLine(channel));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void dataStreaming() {
+        final SMTPDecoder decoder = new SMTPDecoder(1024);
+        final EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        decoder.startData();
+        // Chunks are split inside the stuffed dot and inside the terminator
+        channel.writeInbound(buffer("Subject: test\r\n\r\n.."));
+        channel.writeInbound(buffer("hidden\r\nline\r\n."));
+        channel.writeInbound(buffer("\r"));
+        channel.writeInbound(buffer("\nQUIT\r\n"));
+
+        final StringBuilder data = new StringBuilder();
+        boolean last = false;
+        Object msg;
+        while (!last && (msg = channel.readInbound()) instanceof MessageContent) {
+            final MessageContent content = (MessageContent) msg;
+            data.append(content.content().toString(CharsetUtil.US_ASCII));
+            last = content.isLast();
+            content.release();
+        }
+        assertTrue(last);
+        assertEquals("Subject: test\r\n\r\n.hidden\r\nline\r\n", data.toString());
+        assertEquals("QUIT", readLine(channel));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void chunks() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new SMTPDecoder(1024));
+        channel.writeInbound(buffer("BDAT 7\r\nline\r\n.bdat 0 last\r\nNOOP\r\n"));
+        assertEquals("BDAT 7", readLine(channel));
+        MessageContent content = channel.readInbound();
+        assertEquals("line\r\n.", content.content().toString(CharsetUtil.US_ASCII));
+        assertTrue(content.isLast());
+        content.release();
+        assertEquals("bdat 0 last", readLine(channel));
+        content = channel.readInbound();
+        assertFalse(content.content().isReadable());
+        assertTrue(content.isLast());
+        assertEquals("NOOP", readLine(channel));
+        assertFalse(channel.finish());
+    }
+
+    private static ByteBuf buffer(String data) {
+        return Unpooled.copiedBuffer(data, CharsetUtil.US_ASCII);
+    }
+
+    private static String readLine(EmbeddedChannel channel) {
+        final ByteBuf buf = channel.readInbound();
+        try {
+            return buf.toString(CharsetUtil.US_ASCII);
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.CharsetUtil;
+
+/**
+ * SMTP session benchmark, not a unit test.
+ *
+ * <p>Opens many long-living SMTP sessions to a running server and sends a small message from every
+ * session once in a while, like connection pooling clients do. Prints the delivery throughput and
+ * latency. Run it against a server started with and without {@code --virtual-threads} to compare
+ * the execution modes:
+ * <pre>
+ * java -cp ... ru.eugenehr.testmailserver.SessionBenchmark [host] [port] [sessions] [seconds] [interval ms]
+ * </pre>
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class SessionBenchmark {
+
+    private static final String MESSAGE = "Subject: benchmark\r\n\r\nHello\r\n.\r\n";
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final long[] latencies = new long[MAX_SAMPLES];
+    private final AtomicInteger samples = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * Benchmark entry-point.
+     *
+     * @param args host, port, number of sessions, duration in seconds and mean message interval
+     *             of a session in milliseconds
+     * @throws Exception if any
+     */
+    public static void main(String[] args) throws Exception {
+        final String host = args.length > 0 ? args[0] : "127.0.0.1";
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : 2500;
+        final int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        final int interval = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+        new SessionBenchmark().run(host, port, sessions, seconds, interval);
+    }
+
+    private void run(String host, int port, int sessions, int seconds, int interval) throws Exception {
+        final NioEventLoopGroup group = new NioEventLoopGroup(2);
+        try {
+            final Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new LineBasedFrameDecoder(1024),
+                            new StringDecoder(CharsetUtil.US_ASCII), new StringEncoder(CharsetUtil.US_ASCII),
+                            new Session(interval));
+                    }
+                });
+
+            // Connect in batches to not overflow the accept backlog
+            final long connectStart = System.nanoTime();
+            final Channel[] channels = new Channel[sessions];
+            for (int i = 0; i < sessions; i += 100) {
+                final ChannelFuture[] futures = new ChannelFuture[Math.min(100, sessions - i)];
+                for (int j = 0; j < futures.length; j++) {
+                    futures[j] = bootstrap.connect(host, port);
+                }
+                for (int j = 0; j < futures.length; j++) {
+                    futures[j].awaitUninterruptibly();
+                    if (futures[j].isSuccess()) {
+                        channels[i + j] = futures[j].channel();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+            }
+            System.out.printf("%d sessions opened in %d ms, %d failed%n", sessions - failed.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart), failed.get());
+
+            final long start = System.nanoTime();
+            delivered.set(0);
+            samples.set(0);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            running = false;
+            final long elapsed = System.nanoTime() - start;
+
+            final int count = Math.min(samples.get(), MAX_SAMPLES);
+            final long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.printf("%d sessions active, %d messages in %d s, %.1f messages/s%n",
+                connected.get(), delivered.get(), seconds, delivered.get() * 1e9 / elapsed);
+            if (count > 0) {
+                System.out.printf("latency ms: p50 %.2f, p99 %.2f, max %.2f%n",
+                    sorted[count / 2] / 1e6, sorted[(int) (count * 0.99)] / 1e6, sorted[count - 1] / 1e6);
+            }
+
+            for (Channel channel : channels) {
+                if (channel != null) {
+                    channel.writeAndFlush("QUIT\r\n");
+                }
+            }
+            Thread.sleep(1000);
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * Client session that sends a message at random intervals.
+     */
+    private class Session extends SimpleChannelInboundHandler<String> {
+
+        private final int interval;
+        private long sent;
+
+        Session(int interval) {
+            this.interval = interval;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, String line) {
+            if (line.startsWith("220 ")) {
+                connected.incrementAndGet();
+                ctx.writeAndFlush("EHLO benchmark\r\n");
+            } else if (line.startsWith("250 SIZE")) {
+                schedule(ctx);
+            } else if (line.startsWith("354")) {
+                ctx.writeAndFlush(MESSAGE);
+            } else if (line.endsWith("bytes accepted")) {
+                final long latency = System.nanoTime() - sent;
+                final int sample = samples.getAndIncrement();
+                if (sample < MAX_SAMPLES) {
+                    latencies[sample] = latency;
+                }
+                delivered.incrementAndGet();
+                schedule(ctx);
+            } else if (line.charAt(0) != '2' && line.charAt(0) != '3') {
+                System.err.println("Unexpected response: " + line);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            connected.decrementAndGet();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+
+        private void schedule(ChannelHandlerContext ctx) {
+            // Exponentially distributed pauses with the given mean
+            final long delay = (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * interval);
+            ctx.executor().schedule(() -> {
+                if (running) {
+                    sent = System.nanoTime();
+                    ctx.writeAndFlush("MAIL FROM:<benchmark@localhost>\r\nRCPT TO:<benchmark@localhost>\r\nDATA\r\n");
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
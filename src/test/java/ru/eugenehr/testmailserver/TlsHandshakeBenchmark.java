@@ -0,0 +1,191 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.CharsetUtil;
+
+/**
+ * TLS handshake benchmark, not a unit test.
+ *
+ * <p>Opens short SMTP sessions to the implicit TLS port of a running server one after another: each
+ * session completes the handshake, reads the greeting and quits. Runs twice, with full handshakes
+ * and with session resumption, and prints the handshake throughput and latency of both runs:
+ * <pre>
+ * java -cp ... ru.eugenehr.testmailserver.TlsHandshakeBenchmark [host] [port] [seconds] [concurrency] [protocol]
+ * </pre>
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class TlsHandshakeBenchmark {
+
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final String host;
+    private final int port;
+    private final SslContext sslContext;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final long[] latencies = new long[MAX_SAMPLES];
+    private final AtomicInteger samples = new AtomicInteger();
+    private volatile boolean running;
+
+    private TlsHandshakeBenchmark(String host, int port, SslContext sslContext) {
+        this.host = host;
+        this.port = port;
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Benchmark entry-point.
+     *
+     * @param args host, implicit TLS SMTP port, duration of each run in seconds, number of concurrent
+     *             sessions and TLS protocol version
+     * @throws Exception if any
+     */
+    public static void main(String[] args) throws Exception {
+        final String host = args.length > 0 ? args[0] : "127.0.0.1";
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : 4650;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        final int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        final String protocol = args.length > 4 ? args[4] : "TLSv1.2";
+
+        final NioEventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            for (boolean resume : new boolean[]{false, true}) {
+                // A new client context per run, so the resumed run starts with an empty session cache
+                final SslContext sslContext = SslContextBuilder.forClient()
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .protocols(protocol)
+                    .build();
+                new TlsHandshakeBenchmark(host, port, sslContext).run(group, seconds, concurrency, resume);
+            }
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private void run(NioEventLoopGroup group, int seconds, int concurrency, boolean resume) throws Exception {
+        final Bootstrap bootstrap = new Bootstrap()
+            .group(group)
+            .channel(NioSocketChannel.class)
+            .handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel channel) {
+                    // The client reuses a cached session only if it knows the peer
+                    channel.pipeline().addLast(resume
+                            ? sslContext.newHandler(channel.alloc(), host, port)
+                            : sslContext.newHandler(channel.alloc()),
+                        new LineBasedFrameDecoder(1024),
+                        new StringDecoder(CharsetUtil.US_ASCII), new StringEncoder(CharsetUtil.US_ASCII),
+                        new Session());
+                }
+            });
+
+        running = true;
+        final CountDownLatch stopped = new CountDownLatch(concurrency);
+        final long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            connect(bootstrap, stopped);
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running = false;
+        final long elapsed = System.nanoTime() - start;
+        stopped.await(10, TimeUnit.SECONDS);
+
+        final int count = Math.min(samples.get(), MAX_SAMPLES);
+        final long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.printf("%s handshakes: %d in %d s, %.1f handshakes/s, %d failed%n",
+            resume ? "resumed" : "full", completed.get(), seconds, completed.get() * 1e9 / elapsed, failed.get());
+        if (count > 0) {
+            System.out.printf("latency ms: p50 %.2f, p99 %.2f, max %.2f%n",
+                sorted[count / 2] / 1e6, sorted[(int) (count * 0.99)] / 1e6, sorted[count - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Opens the next session of a chain when the previous one is closed.
+     */
+    private void connect(Bootstrap bootstrap, CountDownLatch stopped) {
+        if (!running) {
+            stopped.countDown();
+            return;
+        }
+        final long connectStart = System.nanoTime();
+        final ChannelFuture future = bootstrap.connect(host, port);
+        future.addListener(connected -> {
+            if (!connected.isSuccess()) {
+                failed.incrementAndGet();
+                connect(bootstrap, stopped);
+                return;
+            }
+            final Channel channel = future.channel();
+            channel.pipeline().get(Session.class).start = connectStart;
+            channel.closeFuture().addListener(closed -> connect(bootstrap, stopped));
+        });
+    }
+
+    /**
+     * Client session that quits as soon as the greeting is received over TLS.
+     */
+    private class Session extends SimpleChannelInboundHandler<String> {
+
+        private long start;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, String line) {
+            if (line.startsWith("220 ")) {
+                final long latency = System.nanoTime() - start;
+                final int sample = samples.getAndIncrement();
+                if (sample < MAX_SAMPLES) {
+                    latencies[sample] = latency;
+                }
+                completed.incrementAndGet();
+                ctx.writeAndFlush("QUIT\r\n");
+            } else if (line.startsWith("221 ")) {
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            failed.incrementAndGet();
+            ctx.close();
+        }
+    }
+}
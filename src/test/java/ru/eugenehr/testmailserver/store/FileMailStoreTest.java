@@ -0,0 +1,74 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FileMailStore} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class FileMailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void index() throws Exception {
+        final File root = folder.getRoot();
+        FileUtils.writeStringToFile(new File(root, "john@example.com/2.msg"), "Second", "UTF-8");
+        FileUtils.writeStringToFile(new File(root, "john@example.com/1.msg"), "First message", "UTF-8");
+        FileUtils.writeStringToFile(new File(root, "john@example.com/notes.txt"), "Not a message", "UTF-8");
+        FileUtils.writeStringToFile(new File(root, "root.msg"), "Not in a mailbox", "UTF-8");
+        new File(root, "empty@example.com").mkdirs();
+
+        final FileMailStore store = new FileMailStore(root);
+        assertEquals(Collections.singleton("john@example.com"), store.getMailboxes());
+        assertEquals(Arrays.asList("1", "2"), Arrays.asList(
+            store.getMessages("john@example.com").toArray(new String[0])));
+        assertEquals(13, store.getMessageSize("john@example.com", "1"));
+        assertEquals(0, store.getMessageSize("john@example.com", "3"));
+        assertNull(store.openMessage("john@example.com", "3"));
+        try (InputStream in = store.openMessage("john@example.com", "2")) {
+            assertEquals("Second", IOUtils.toString(in, "UTF-8"));
+        }
+        assertTrue(store.getMessages("empty@example.com").isEmpty());
+
+        assertTrue(store.deleteMessage("john@example.com", "1"));
+        assertFalse(store.deleteMessage("john@example.com", "1"));
+        assertEquals(new HashSet<>(Collections.singletonList("2")), store.getMessages("john@example.com"));
+        assertTrue(store.deleteMessage("john@example.com", "2"));
+        assertTrue(store.getMailboxes().isEmpty());
+        store.close();
+    }
+}
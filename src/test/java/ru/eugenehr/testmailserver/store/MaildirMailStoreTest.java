@@ -0,0 +1,82 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ru.eugenehr.testmailserver.MessageSpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link MaildirMailStore} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class MaildirMailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void deliverAndMarkSeen() throws Exception {
+        final File root = folder.getRoot();
+        MaildirMailStore store = new MaildirMailStore(root);
+        final MessageSpool spool = new MessageSpool(UnpooledByteBufAllocator.DEFAULT, 1024, 0);
+        try {
+            spool.write(Unpooled.copiedBuffer("Subject: Test\r\n\r\nBody\r\n", CharsetUtil.US_ASCII));
+            spool.close();
+            store.deliver(new HashSet<>(Arrays.asList("john@example.com", "jane@example.com")), "1", spool).get();
+        } finally {
+            spool.release();
+        }
+
+        assertTrue(new File(root, "jane@example.com/new/1").isFile());
+        assertEquals(0, new File(root, "jane@example.com/tmp").list().length);
+        assertEquals(23, store.getMessageSize("jane@example.com", "1"));
+        assertFalse(store.isSeen("jane@example.com", "1"));
+
+        store.markSeen("jane@example.com", "1");
+        assertTrue(store.isSeen("jane@example.com", "1"));
+        assertTrue(new File(root, "jane@example.com/cur/1:2,S").isFile());
+        try (InputStream in = store.openMessage("jane@example.com", "1")) {
+            assertEquals("Subject: Test\r\n\r\nBody\r\n", IOUtils.toString(in, CharsetUtil.US_ASCII));
+        }
+        store.close();
+
+        store = new MaildirMailStore(root);
+        assertTrue(store.isSeen("jane@example.com", "1"));
+        assertFalse(store.isSeen("john@example.com", "1"));
+        assertTrue(store.deleteMessage("jane@example.com", "1"));
+        assertEquals(Collections.singleton("john@example.com"), store.getMailboxes());
+        store.close();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import ru.eugenehr.testmailserver.MessageSpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link MemoryMailStore} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class MemoryMailStoreTest {
+
+    @Test
+    public void heap() throws Exception {
+        test(new MemoryMailStore(false), 1024, false);
+    }
+
+    @Test
+    public void offHeapSpilled() throws Exception {
+        test(new MemoryMailStore(true), 4, false);
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        test(new MemoryMailStore(false), 1024, true);
+    }
+
+    private static void test(MemoryMailStore store, int spoolThreshold, boolean compress) throws Exception {
+        final MessageSpool spool = new MessageSpool(UnpooledByteBufAllocator.DEFAULT, spoolThreshold, 0, compress);
+        try {
+            spool.write(Unpooled.copiedBuffer("Subject: Test\r\n\r\nBody\r\n", CharsetUtil.US_ASCII));
+            spool.close();
+            store.deliver(new HashSet<>(Arrays.asList("john@example.com", "jane@example.com")), "1", spool).get();
+        } finally {
+            spool.release();
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList("john@example.com", "jane@example.com")), store.getMailboxes());
+        assertEquals(Collections.singleton("1"), store.getMessages("jane@example.com"));
+        assertEquals(23, store.getMessageSize("jane@example.com", "1"));
+        assertEquals(compress, store.getStoredSize("jane@example.com", "1") != 23);
+        for (int i = 0; i < 2; i++) {
+            try (InputStream in = store.openMessage("jane@example.com", "1")) {
+                assertEquals("Subject: Test\r\n\r\nBody\r\n", IOUtils.toString(in, CharsetUtil.US_ASCII));
+            }
+        }
+        assertNull(store.openMessage("jane@example.com", "2"));
+
+        assertTrue(store.deleteMessage("jane@example.com", "1"));
+        assertFalse(store.deleteMessage("jane@example.com", "1"));
+        assertEquals(Collections.singleton("john@example.com"), store.getMailboxes());
+        assertEquals(23, store.getMessageSize("john@example.com", "1"));
+        store.close();
+        assertTrue(store.getMailboxes().isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2018 (c) Eugene Khrustalev
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.eugenehr.testmailserver.store;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ru.eugenehr.testmailserver.MessageSpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SegmentMailStore} unit tests.
+ *
+ * @author <a href="mailto:eugene.khrustalev@gmail.com">Eugene Khrustalev</a>
+ */
+public class SegmentMailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compaction() throws Exception {
+        final File root = folder.getRoot();
+        // Three messages per segment
+        SegmentMailStore store = new SegmentMailStore(root, 27);
+        for (int i = 0; i < 10; i++) {
+            deliver(store, i == 0 || i == 4 ? new HashSet<>(Arrays.asList("john@example.com", "jane@example.com"))
+                : Collections.singleton("john@example.com"), "m" + i, "Message " + i);
+        }
+        assertEquals(4, segments(root));
+        assertEquals(10, store.getMessages("john@example.com").size());
+        assertEquals(9, store.getMessageSize("jane@example.com", "m4"));
+
+        for (int i = 0; i < 10; i++) {
+            store.deleteMessage("john@example.com", "m" + i);
+        }
+        assertEquals(Collections.singleton("jane@example.com"), store.getMailboxes());
+        store.compact();
+        // The live messages of three sealed segments are moved to one, the active segment is kept
+        assertEquals(2, segments(root));
+        assertEquals("Message 4", content(store, "jane@example.com", "m4"));
+        store.close();
+
+        store = new SegmentMailStore(root, 27);
+        assertEquals(new HashSet<>(Arrays.asList("m0", "m4")), store.getMessages("jane@example.com"));
+        assertEquals("Message 0", content(store, "jane@example.com", "m0"));
+        assertNull(store.openMessage("john@example.com", "m1"));
+        store.deleteMessage("jane@example.com", "m0");
+        store.close();
+
+        store = new SegmentMailStore(root, 27);
+        assertEquals(Collections.singleton("m4"), store.getMessages("jane@example.com"));
+        assertEquals("Message 4", content(store, "jane@example.com", "m4"));
+        store.close();
+    }
+
+    private static void deliver(SegmentMailStore store, Set<String> mailboxes, String message, String content)
+        throws Exception {
+        final MessageSpool spool = new MessageSpool(UnpooledByteBufAllocator.DEFAULT, 1024, 0);
+        try {
+            spool.write(Unpooled.copiedBuffer(content, CharsetUtil.US_ASCII));
+            spool.close();
+            store.deliver(mailboxes, message, spool).get();
+        } finally {
+            spool.release();
+        }
+    }
+
+    private static String content(SegmentMailStore store, String mailbox, String message) throws Exception {
+        try (InputStream in = store.openMessage(mailbox, message)) {
+            assertTrue(in != null);
+            return IOUtils.toString(in, CharsetUtil.US_ASCII);
+        }
+    }
+
+    private static int segments(File root) {
+        return root.list((dir, name) -> name.endsWith(".seg")).length;
+    }
+}